@@ -0,0 +1,405 @@
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Files shared in chat, kept on local disk rather than in the message history.
+ *
+ * An upload arrives in CHUNK frames and each chunk is written at its offset straight into
+ * "partial/&lt;user&gt;-&lt;upload id&gt;-&lt;size&gt;.part", so the length of that file is how far
+ * the upload got and a client that reconnects carries on from there. A finished upload
+ * gets a random id and becomes "&lt;id&gt;.data" with its name in "&lt;id&gt;.meta".
+ *
+ * Stored files plus the full size of every partial one may not exceed QUOTA_BYTES; the total
+ * is counted at startup and kept up to date from then on. A partial file nobody has written
+ * to for PARTIAL_EXPIRY is deleted, since its upload is not coming back.
+ *
+ * Downloads go out with FileChannel.transferTo, which the NIO mode turns into sendfile:
+ * the bytes go from the page cache to the socket without passing through the heap.
+ */
+final class Attachments {
+    static final boolean ENABLED = !"false".equals(System.getProperty("chat.attachments"));
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final long MAX_FILE_BYTES = Long.getLong("chat.attachments.max.bytes", 100L << 20);
+
+    private static final File DIRECTORY = new File(System.getProperty("chat.attachments.dir", "chat-attachments"));
+    private static final File PARTIAL = new File(DIRECTORY, "partial");
+    private static final int MAX_NAME_LENGTH = 255;
+    // Starts the history text of a file announcement. Everything else in the history starts
+    // with a timestamp or "***", so no chat line can pass for one.
+    private static final char ANNOUNCEMENT = '\u0001';
+    private static final String SHARED = " shared a file: ";
+
+    private static final long QUOTA_BYTES = Long.getLong("chat.attachments.quota.bytes", 10L << 30);
+    private static final long PARTIAL_EXPIRY_MILLIS =
+            TimeUnit.HOURS.toMillis(Long.getLong("chat.attachments.partial.hours", 24));
+    private static final long EXPIRY_CHECK_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int DISK_THREADS = Integer.getInteger("chat.attachments.threads", 4);
+
+    private final SecureRandom random = new SecureRandom();
+    // Upload writes, syncs and renames happen here rather than on the thread that read the
+    // frame, which in NIO mode is an event loop serving every other connection on it.
+    private final ScheduledExecutorService disk = Executors.newScheduledThreadPool(DISK_THREADS, r -> {
+        Thread t = new Thread(r, "chat-attachments");
+        t.setDaemon(true);
+        return t;
+    });
+    // Guarded by this: bytes counted against the quota, and the partial files of uploads in
+    // progress, which are never expired.
+    private long used;
+    private final Set<File> open = ConcurrentHashMap.newKeySet();
+
+    Attachments() {
+        if (!ENABLED) return;
+        used = countUsed();
+        disk.scheduleWithFixedDelay(this::expirePartials, EXPIRY_CHECK_MILLIS, EXPIRY_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** A file on disk that can be downloaded. */
+    static final class Stored {
+        final long id;
+        final String name;
+        final long size;
+        final File data;
+
+        Stored(long id, String name, long size, File data) {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    /**
+     * An upload in progress; used by the connection that receives it only, one frame at a
+     * time, though not always on the same thread.
+     */
+    final class Upload {
+        final long id;
+        final String name;
+        final long size;
+        private final File partial;
+        private final FileChannel channel;
+        private long stored;
+        // The client may send up to here; raised as chunks are acknowledged.
+        long limit;
+
+        Upload(long id, String name, long size, File partial, FileChannel channel, long stored) {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.partial = partial;
+            this.channel = channel;
+            this.stored = stored;
+        }
+
+        long stored() {
+            return stored;
+        }
+
+        /** Appends one chunk; chunks have to come in order. */
+        void write(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                stored += channel.write(data, stored);
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            open.remove(partial);
+        }
+    }
+
+    /**
+     * One file going out to one client: a DOWNLOAD frame, then CHUNK frames from the requested
+     * offset. Only the connection's writer touches it, a frame at a time; a frame may take
+     * several calls when the socket fills up, and nothing else may be written in between.
+     */
+    static final class Download {
+        private static final int CHUNK_HEADER = Frame.HEADER_LENGTH + 16;
+
+        private final FileChannel channel;
+        private final long id;
+        private final long size;
+        private long position;
+        private long chunkEnd;
+        // The header being written: the DOWNLOAD frame first, then each chunk's.
+        private final ByteBuffer header;
+        private boolean writing;
+        private boolean reserved;
+        private long readyAt;
+
+        Download(Stored file, long offset) throws IOException {
+            this.channel = FileChannel.open(file.data.toPath(), StandardOpenOption.READ);
+            this.id = file.id;
+            this.size = file.size;
+            this.position = offset;
+            this.chunkEnd = offset;
+            byte[] info = Frame.encode(Frame.DOWNLOAD,
+                    ByteBuffer.allocate(24).putLong(id).putLong(size).putLong(offset).array(),
+                    file.name.getBytes(StandardCharsets.UTF_8));
+            this.header = ByteBuffer.allocate(Math.max(CHUNK_HEADER, info.length));
+            header.put(info).flip();
+        }
+
+        /** True while a frame is partly written. */
+        boolean midFrame() {
+            return writing;
+        }
+
+        boolean isDone() {
+            return !writing && !header.hasRemaining() && position == size;
+        }
+
+        /**
+         * Nanoseconds the next chunk has to wait under the given rate. Its bytes are reserved on
+         * the first call, so asking again doesn't push it further back.
+         */
+        long delay(TokenBucket rate, long now) {
+            if (writing || header.hasRemaining() || position == size) return 0;
+            if (!reserved) {
+                readyAt = now + rate.reserve(Math.min(CHUNK_SIZE, size - position), now);
+                reserved = true;
+            }
+            return Math.max(0, readyAt - now);
+        }
+
+        /**
+         * Writes the next frame, or the rest of the one in progress, until it is complete or
+         * the channel takes no more. Returns the number of bytes written.
+         */
+        long writeTo(WritableByteChannel out) throws IOException {
+            if (!writing) {
+                if (!header.hasRemaining()) {
+                    int length = (int) Math.min(CHUNK_SIZE, size - position);
+                    chunkEnd = position + length;
+                    header.clear();
+                    header.putInt(1 + 16 + length).put(Frame.CHUNK).putLong(id).putLong(position).flip();
+                    reserved = false;
+                }
+                writing = true;
+            }
+            long written = 0;
+            while (header.hasRemaining()) {
+                int n = out.write(header);
+                if (n == 0) return written;
+                written += n;
+            }
+            while (position < chunkEnd) {
+                long n = channel.transferTo(position, chunkEnd - position, out);
+                if (n == 0) return written;
+                position += n;
+                written += n;
+            }
+            writing = false;
+            return written;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /** Runs upload I/O (begin, Upload.write, finish) off the caller's thread. */
+    void run(Runnable task) {
+        disk.execute(task);
+    }
+
+    /**
+     * Starts an upload, or picks up a partial one the same user left with the same upload id
+     * and size. Throws with a reason the user can be shown when the file is refused.
+     */
+    Upload begin(String user, long uploadId, long size, String name) throws IOException {
+        if (!ENABLED) {
+            throw new IOException("file sharing is turned off");
+        }
+        if (size < 0 || size > MAX_FILE_BYTES) {
+            throw new IOException("files are limited to " + describeSize(MAX_FILE_BYTES));
+        }
+        Files.createDirectories(PARTIAL.toPath());
+        File partial = new File(PARTIAL, URLEncoder.encode(user.toLowerCase(), "UTF-8")
+                + "-" + hex(uploadId) + "-" + size + ".part");
+        FileChannel channel;
+        synchronized (this) {
+            boolean fresh = !partial.exists();
+            if (fresh && used + size > QUOTA_BYTES) {
+                throw new IOException("the server has no room for more files");
+            }
+            channel = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (fresh) {
+                used += size;
+            }
+            open.add(partial);
+        }
+        long stored = channel.size();
+        if (stored > size) {
+            channel.truncate(0);
+            stored = 0;
+        }
+        return new Upload(uploadId, cleanName(name), size, partial, channel, stored);
+    }
+
+    /** Moves a complete upload into place under a new id. */
+    Stored finish(Upload upload, String uploader) throws IOException {
+        try {
+            upload.channel.force(true);
+        } finally {
+            upload.close();
+        }
+        long id;
+        File data;
+        do {
+            id = random.nextLong();
+            data = new File(DIRECTORY, hex(id) + ".data");
+        } while (data.exists());
+        Properties meta = new Properties();
+        meta.setProperty("name", upload.name);
+        meta.setProperty("size", Long.toString(upload.size));
+        meta.setProperty("uploader", uploader);
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(metaFile(id)), StandardCharsets.UTF_8)) {
+            meta.store(out, null);
+        }
+        // The data file appearing is what makes the upload visible to find().
+        Files.move(upload.partial.toPath(), data.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return new Stored(id, upload.name, upload.size, data);
+    }
+
+    // Stored files count their length, partial ones the size they will have once complete.
+    private static long countUsed() {
+        long total = 0;
+        File[] stored = DIRECTORY.listFiles((dir, name) -> name.endsWith(".data"));
+        if (stored != null) {
+            for (File file : stored) {
+                total += file.length();
+            }
+        }
+        File[] partials = PARTIAL.listFiles((dir, name) -> name.endsWith(".part"));
+        if (partials != null) {
+            for (File file : partials) {
+                total += partialSize(file);
+            }
+        }
+        return total;
+    }
+
+    private void expirePartials() {
+        File[] partials = PARTIAL.listFiles((dir, name) -> name.endsWith(".part"));
+        if (partials == null) return;
+        long cutoff = System.currentTimeMillis() - PARTIAL_EXPIRY_MILLIS;
+        for (File file : partials) {
+            synchronized (this) {
+                if (!open.contains(file) && file.lastModified() < cutoff && file.delete()) {
+                    used -= partialSize(file);
+                }
+            }
+        }
+    }
+
+    // The size the upload announced, from the end of "<user>-<upload id>-<size>.part".
+    private static long partialSize(File partial) {
+        String name = partial.getName();
+        try {
+            return Long.parseLong(name.substring(name.lastIndexOf('-') + 1, name.length() - ".part".length()));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The history text announcing a finished upload: ANNOUNCEMENT, "&lt;file id&gt; &lt;size&gt;
+     * &lt;length of the uploader's name&gt; ", then the line everyone is shown.
+     */
+    static String announcement(Stored file, String uploader) {
+        return ANNOUNCEMENT + hex(file.id) + " " + file.size + " " + uploader.length() + " "
+                + "[" + ChatServer.timestamp() + "] " + uploader + SHARED + file.name
+                + " (" + describeSize(file.size) + ") /download " + hex(file.id);
+    }
+
+    static boolean isAnnouncement(String text) {
+        return !text.isEmpty() && text.charAt(0) == ANNOUNCEMENT;
+    }
+
+    /** History text as people see it: an announcement without the fields in front. */
+    static String shownText(String text) {
+        if (!isAnnouncement(text)) return text;
+        int fileEnd = text.indexOf(' ');
+        int sizeEnd = text.indexOf(' ', fileEnd + 1);
+        return text.substring(text.indexOf(' ', sizeEnd + 1) + 1);
+    }
+
+    /** The payload of the Frame.FILE frame that stands in for an announcement. */
+    static byte[] announcementPayload(long historyId, String text) {
+        int fileEnd = text.indexOf(' ');
+        int sizeEnd = text.indexOf(' ', fileEnd + 1);
+        int lengthEnd = text.indexOf(' ', sizeEnd + 1);
+        String shown = text.substring(lengthEnd + 1);
+        int uploaderStart = shown.indexOf("] ") + 2;
+        int uploaderEnd = uploaderStart + Integer.parseInt(text.substring(sizeEnd + 1, lengthEnd));
+        String name = shown.substring(uploaderEnd + SHARED.length(), shown.lastIndexOf(" ("));
+        byte[] names = (name + "\n" + shown.substring(uploaderStart, uploaderEnd)).getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(24 + names.length).putLong(historyId)
+                .putLong(Long.parseUnsignedLong(text.substring(1, fileEnd), 16))
+                .putLong(Long.parseLong(text.substring(fileEnd + 1, sizeEnd))).put(names).array();
+    }
+
+    /** The stored file with this id, or null if there is none. */
+    Stored find(long id) {
+        File data = new File(DIRECTORY, hex(id) + ".data");
+        if (!data.isFile()) return null;
+        Properties meta = new Properties();
+        try (Reader in = new InputStreamReader(new FileInputStream(metaFile(id)), StandardCharsets.UTF_8)) {
+            meta.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        return new Stored(id, meta.getProperty("name", hex(id)), data.length(), data);
+    }
+
+    private static File metaFile(long id) {
+        return new File(DIRECTORY, hex(id) + ".meta");
+    }
+
+    static String hex(long id) {
+        return String.format("%016x", id);
+    }
+
+    static String describeSize(long bytes) {
+        if (bytes < 1024) return bytes + " bytes";
+        if (bytes < 1024 * 1024) return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+        return String.format(Locale.ROOT, "%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    // Just the last path element without control characters, so it is safe to show and to
+    // offer as a file name.
+    private static String cleanName(String name) {
+        String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        StringBuilder clean = new StringBuilder();
+        for (int i = 0; i < base.length() && clean.length() < MAX_NAME_LENGTH; i++) {
+            char c = base.charAt(i);
+            if (!Character.isISOControl(c)) {
+                clean.append(c);
+            }
+        }
+        String result = clean.toString().trim();
+        return result.isEmpty() || result.equals(".") || result.equals("..") ? "file" : result;
+    }
+}
@@ -0,0 +1,295 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Audit trail of what happened in chat: every chat line, join, leave and shared file, one
+ * line each in rolling files under "chat-audit/" (-Dchat.audit.dir).
+ *
+ * Handler threads only claim a slot in a fixed ring with one compare-and-set and drop the
+ * text in, so logging never takes a lock or touches a file. One writer thread wakes every
+ * -Dchat.audit.flush.millis (100), or sooner once the ring is half full, and writes everything
+ * waiting in a few large writes. When the ring is full the entry is dropped and counted, and the
+ * count is written to the file in its place, so a flood costs audit detail, not chat latency.
+ *
+ * Files are fsynced every -Dchat.audit.fsync.millis (1000; 0 after every write, negative
+ * leaves it to the OS), roll over at -Dchat.audit.file.bytes (64 MB) and only the newest
+ * -Dchat.audit.files (10) are kept. A clean shutdown writes out everything still in the ring.
+ */
+final class AuditLog {
+    static final boolean ENABLED = !"false".equals(System.getProperty("chat.audit"));
+    static final File DIRECTORY = new File(System.getProperty("chat.audit.dir", "chat-audit"));
+
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("chat.audit.buffer", 64 * 1024) - 1) << 1);
+    private static final long FLUSH_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.audit.flush.millis", 100));
+    private static final long FSYNC_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.audit.fsync.millis", 1000));
+    private static final long FILE_BYTES = Long.getLong("chat.audit.file.bytes", 64L << 20);
+    private static final int FILES = Math.max(1, Integer.getInteger("chat.audit.files", 10));
+    // Writer side only: echo every entry to stdout too, as the server used to.
+    private static final boolean CONSOLE = Boolean.getBoolean("chat.audit.console");
+
+    private final File directory;
+    // Slot n of the ring is n & mask. A producer owns a slot from winning the CAS on tail until
+    // it sets the text; the writer owns it from seeing the text until it moves head past it.
+    private final AtomicReferenceArray<String> texts = new AtomicReferenceArray<>(CAPACITY);
+    private final String[] rooms = new String[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+    private final int mask = CAPACITY - 1;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicBoolean writerParked = new AtomicBoolean();
+    private Thread writer;
+    private volatile boolean stopping;
+
+    // Only the writer thread uses these.
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+    private final StringBuilder line = new StringBuilder(256);
+    private final SimpleDateFormat secondFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private long formattedSecond = -1;
+    private String formattedTime;
+    private long droppedWritten;
+    private FileChannel file;
+    private long fileBytes;
+    private long lastSync = System.nanoTime();
+    private boolean unsynced;
+
+    /** Writes to the given directory, or nowhere if it is null. */
+    AuditLog(File directory) {
+        this.directory = directory;
+        if (directory == null) return;
+        writer = new Thread(this::writeLoop, "chat-audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Queues one entry; room may be null. Never blocks: returns false if the entry was
+     * dropped because the writer is that far behind.
+     */
+    boolean log(String room, String text) {
+        if (writer == null) return true;
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head >= CAPACITY) {
+                dropped.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        int index = (int) slot & mask;
+        rooms[index] = room;
+        times[index] = System.currentTimeMillis();
+        // Publishes room and time with it; the writer reads the text first.
+        texts.lazySet(index, text);
+        if ((FLUSH_NANOS == 0 || slot - head >= CAPACITY / 2) && writerParked.get()) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /** Entries queued and not yet written. */
+    long backlog() {
+        return writer == null ? 0 : Math.max(0, tail.get() - head);
+    }
+
+    /** Entries dropped because the ring was full. */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    private void writeLoop() {
+        try {
+            openFile();
+        } catch (IOException e) {
+            System.err.println("Could not open audit log in " + directory + ": " + e.getMessage());
+        }
+        while (true) {
+            boolean finishing = stopping;
+            drain(finishing);
+            if (finishing) break;
+            writerParked.set(true);
+            if (tail.get() - head < CAPACITY / 2) {
+                LockSupport.parkNanos(FLUSH_NANOS > 0 ? FLUSH_NANOS : TimeUnit.MILLISECONDS.toNanos(50));
+            }
+            writerParked.set(false);
+        }
+        if (file != null) {
+            try {
+                file.force(false);
+                file.close();
+            } catch (IOException e) {
+                System.err.println("Could not close audit log: " + e.getMessage());
+            }
+        }
+    }
+
+    // Writes out every entry up to the tail as it was on entry. A producer that has claimed a
+    // slot but not yet filled it ends the pass, unless this is the last one before shutdown.
+    private void drain(boolean finishing) {
+        long end = tail.get();
+        long next = head;
+        while (next < end) {
+            int index = (int) next & mask;
+            String text = texts.get(index);
+            if (text == null) {
+                if (!finishing) break;
+                Thread.yield();
+                continue;
+            }
+            append(times[index], rooms[index], text);
+            rooms[index] = null;
+            texts.lazySet(index, null);
+            head = ++next;
+        }
+        long droppedNow = dropped.sum();
+        if (droppedNow != droppedWritten) {
+            append(System.currentTimeMillis(), null,
+                    "*** " + (droppedNow - droppedWritten) + " audit entries dropped, buffer full ***");
+            droppedWritten = droppedNow;
+        }
+        writeBuffer();
+        if (unsynced && FSYNC_NANOS >= 0 && (finishing || System.nanoTime() - lastSync >= FSYNC_NANOS)) {
+            try {
+                file.force(false);
+            } catch (IOException e) {
+                System.err.println("Audit log sync failed: " + e.getMessage());
+            }
+            unsynced = false;
+            lastSync = System.nanoTime();
+        }
+    }
+
+    // "2025-11-07 16:00:00.123 #room text", with newlines in the text escaped so every entry
+    // stays on one line.
+    private void append(long time, String room, String text) {
+        long second = time / 1000;
+        if (second != formattedSecond) {
+            formattedTime = secondFormat.format(new Date(second * 1000));
+            formattedSecond = second;
+        }
+        int millis = (int) (time % 1000);
+        line.setLength(0);
+        line.append(formattedTime).append('.')
+                .append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10))
+                .append(' ');
+        if (room != null) {
+            line.append('#').append(room).append(' ');
+        }
+        if (!needsEscaping(text)) {
+            line.append(text);
+        } else {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '\n') {
+                    line.append("\\n");
+                } else if (c == '\r') {
+                    line.append("\\r");
+                } else if (c == '\\') {
+                    line.append("\\\\");
+                } else {
+                    line.append(c);
+                }
+            }
+        }
+        line.append('\n');
+        if (CONSOLE) {
+            System.out.print(line);
+        }
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > buffer.remaining()) {
+            writeBuffer();
+        }
+        if (bytes.length > buffer.capacity()) {
+            write(ByteBuffer.wrap(bytes));
+        } else {
+            buffer.put(bytes);
+        }
+    }
+
+    private static boolean needsEscaping(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\\') return true;
+        }
+        return false;
+    }
+
+    private void writeBuffer() {
+        buffer.flip();
+        if (buffer.hasRemaining()) {
+            write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void write(ByteBuffer bytes) {
+        if (file == null) return;
+        try {
+            if (fileBytes > 0 && fileBytes + bytes.remaining() > FILE_BYTES) {
+                roll();
+            }
+            while (bytes.hasRemaining()) {
+                fileBytes += file.write(bytes);
+            }
+            unsynced = true;
+        } catch (IOException e) {
+            System.err.println("Audit log write failed: " + e.getMessage());
+        }
+    }
+
+    private void roll() throws IOException {
+        file.force(false);
+        file.close();
+        file = null;
+        openFile();
+    }
+
+    // Starts a new file named after the current time, so names sort oldest first, and deletes
+    // the oldest ones beyond the number kept.
+    private void openFile() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create directory");
+        }
+        SimpleDateFormat stamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+        File next;
+        for (long time = System.currentTimeMillis(); ; time++) {
+            next = new File(directory, "audit-" + stamp.format(new Date(time)) + ".log");
+            if (!next.exists()) break;
+        }
+        file = FileChannel.open(next.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        fileBytes = 0;
+        unsynced = false;
+        lastSync = System.nanoTime();
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("audit-") && name.endsWith(".log"));
+        if (files == null || files.length <= FILES) return;
+        Arrays.sort(files);
+        for (int i = 0; i < files.length - FILES; i++) {
+            if (!files[i].delete()) {
+                System.err.println("Could not delete old audit log " + files[i]);
+            }
+        }
+    }
+
+    /** Writes out what is queued and stops the writer; later entries are not written. */
+    void close() {
+        if (writer == null) return;
+        stopping = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ignored) {}
+    }
+}
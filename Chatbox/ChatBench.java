@@ -0,0 +1,310 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Microbenchmarks for the server's hot paths, run in-process against the real classes:
+ *
+ * <pre>
+ *   javac *.java
+ *   java ChatBench [name filter]
+ * </pre>
+ *
+ * Like JMH, every benchmark gets warmup iterations that are thrown away, then measured
+ * iterations of a fixed length; the score is the mean time per operation with the standard
+ * deviation between iterations. Tune with -Dbench.warmup, -Dbench.iterations,
+ * -Dbench.seconds (per iteration) and -Dbench.members (clients in the room). History and the
+ * audit log are off unless -Dchat.history=true or -Dchat.audit=true is given, so the numbers
+ * don't depend on the disk. The audit benchmarks compare println with the audit log, alone
+ * and on -Dbench.audit.threads (4) threads at once, writing to a temporary directory that
+ * keeps -Dchat.audit.files (2 here) files. The search
+ * benchmarks run against an in-memory index of -Dbench.search.messages (1,000,000) made-up
+ * messages with a skewed vocabulary, built first.
+ */
+public class ChatBench {
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 5);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_NANOS = Long.getLong("bench.seconds", 1) * 1_000_000_000L;
+    private static final int MEMBERS = Integer.getInteger("bench.members", 100);
+    private static final int SEARCH_MESSAGES = Integer.getInteger("bench.search.messages", 1_000_000);
+    private static final int AUDIT_THREADS = Integer.getInteger("bench.audit.threads", 4);
+
+    // Everything a benchmark computes ends up here, so the JIT can't drop the work.
+    private static volatile long sink;
+
+    interface Op {
+        long run();
+    }
+
+    // Stands in for a socket: takes whatever was queued and encodes it the way a writer would.
+    private static final class SinkTransport implements ChatTransport {
+        private final List<OutboundMessage> batch = new ArrayList<>();
+        private ClientHandler handler;
+        private long bytes;
+
+        public void flushOutbound() {
+            handler.outbound().drainTo(batch, Integer.MAX_VALUE);
+            for (int i = 0; i < batch.size(); i++) {
+                bytes += batch.get(i).bytes(handler.format()).length;
+            }
+            batch.clear();
+        }
+
+        public void pauseReading() {}
+
+        public void resumeReading() {}
+
+        public void close() {}
+    }
+
+    public static void main(String[] args) {
+        if (System.getProperty("chat.history") == null) {
+            System.setProperty("chat.history", "false");
+        }
+        if (System.getProperty("chat.audit") == null) {
+            System.setProperty("chat.audit", "false");
+        }
+        if (System.getProperty("chat.audit.files") == null) {
+            System.setProperty("chat.audit.files", "2");
+        }
+        String filter = args.length > 0 ? args[0] : "";
+        PrintStream console = System.out;
+        // Keep anything the server prints out of the timings.
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {}
+            public void write(byte[] b, int off, int len) {}
+        }));
+
+        for (int i = 0; i < MEMBERS; i++) {
+            connect("member" + i, i % 2 == 0);
+        }
+        String message = "the quick brown fox jumps over the lazy dog";
+        int[] counter = new int[1];
+
+        console.printf("%-32s %5s %12s %10s  %s%n", "Benchmark", "Cnt", "Score", "Error", "Units");
+        run(console, filter, "broadcast (" + MEMBERS + " members)", () -> {
+            ChatServer.broadcastToRoom(ChatServer.DEFAULT_ROOM, message, null);
+            return 1;
+        });
+        run(console, filter, "format line", () -> {
+            String formatted = "[" + ChatServer.timestamp() + "] member0: " + message;
+            return OutboundMessage.of(formatted).bytes(OutboundMessage.LINE).length;
+        });
+        run(console, filter, "format frame", () -> {
+            String formatted = "[" + ChatServer.timestamp() + "] member0: " + message;
+            return OutboundMessage.logged(1, formatted).bytes(OutboundMessage.FRAME).length;
+        });
+        // A multi-line paste and a history replay, for what deflate costs against what it saves.
+        StringBuilder paste = new StringBuilder();
+        List<OutboundMessage> replay = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String line = "[" + ChatServer.timestamp() + "] member" + (i % 7) + ": line " + i + " of " + message;
+            if (paste.length() < 2048) {
+                paste.append(line).append('\n');
+            }
+            replay.add(OutboundMessage.logged(i + 1, line));
+        }
+        String pasted = paste.toString();
+        String pasteName = "deflate paste (" + pasted.length() + " chars)";
+        String replayName = "deflate replay (200 messages)";
+        run(console, filter, pasteName, () -> OutboundMessage.of(pasted).bytes(OutboundMessage.DEFLATE).length);
+        run(console, filter, replayName, () -> OutboundMessage.batch(replay).bytes(OutboundMessage.DEFLATE).length);
+        if (pasteName.contains(filter) || replayName.contains(filter)) {
+            console.printf("  paste %d -> %d bytes, replay %d -> %d bytes%n",
+                    OutboundMessage.of(pasted).bytes(OutboundMessage.FRAME).length,
+                    OutboundMessage.of(pasted).bytes(OutboundMessage.DEFLATE).length,
+                    OutboundMessage.batch(replay).bytes(OutboundMessage.FRAME).length,
+                    OutboundMessage.batch(replay).bytes(OutboundMessage.DEFLATE).length);
+        }
+        run(console, filter, "getUserList (" + MEMBERS + " users)", () -> ChatServer.getUserList().length());
+        run(console, filter, "handshake (" + MEMBERS + " in lobby)", () -> {
+            ClientHandler handler = connect("guest" + (counter[0]++ & 1023), true);
+            handler.close();
+            return 1;
+        });
+        if ("search".contains(filter) || filter.startsWith("search")) {
+            benchSearch(console, filter);
+        }
+        if ("audit".contains(filter) || filter.startsWith("audit")) {
+            benchAudit(console, filter, message);
+        }
+        System.exit(0);
+    }
+
+    // The audit log against the println it replaced, alone and with other threads logging at
+    // the same time, the way handler threads do under load.
+    private static void benchAudit(PrintStream console, String filter, String message) {
+        File directory;
+        PrintStream printer;
+        try {
+            directory = Files.createTempDirectory("chat-bench-audit").toFile();
+            File devNull = new File("/dev/null");
+            printer = new PrintStream(new FileOutputStream(devNull.exists() ? devNull : new File(directory, "println.log")), true);
+        } catch (IOException e) {
+            console.println("audit: " + e);
+            return;
+        }
+        AuditLog audit = new AuditLog(directory);
+        String line = "[" + ChatServer.timestamp() + "] member0: " + message;
+        Op println = () -> {
+            printer.println(line);
+            return 1;
+        };
+        Op log = () -> audit.log("lobby", line) ? 1 : 0;
+        run(console, filter, "audit println", println);
+        run(console, filter, "audit log", log);
+        contended(console, filter, "audit println (" + AUDIT_THREADS + " threads)", println);
+        contended(console, filter, "audit log (" + AUDIT_THREADS + " threads)", log);
+        // Logging as fast as the writer takes entries, for how much it can keep up with.
+        long dropped = audit.dropped();
+        long started = System.nanoTime();
+        for (int i = 0; i < 2_000_000; i++) {
+            while (!audit.log("lobby", line)) {
+                Thread.yield();
+            }
+        }
+        while (audit.backlog() > 0) {
+            Thread.yield();
+        }
+        console.printf("  audit writer: %.0f entries/s; entries dropped while the ring was full above: %d%n",
+                2_000_000 * 1e9 / (System.nanoTime() - started), dropped);
+        audit.close();
+        printer.close();
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    // Like run, with AUDIT_THREADS - 1 other threads doing the same operation meanwhile.
+    private static void contended(PrintStream console, String filter, String name, Op op) {
+        if (!name.contains(filter)) return;
+        AtomicBoolean done = new AtomicBoolean();
+        List<Thread> others = new ArrayList<>();
+        for (int i = 1; i < AUDIT_THREADS; i++) {
+            Thread t = new Thread(() -> {
+                long result = 0;
+                while (!done.get()) {
+                    result += op.run();
+                }
+                sink += result;
+            });
+            t.start();
+            others.add(t);
+        }
+        try {
+            run(console, filter, name, op);
+        } finally {
+            done.set(true);
+            for (Thread t : others) {
+                try {
+                    t.join();
+                } catch (InterruptedException ignored) {}
+            }
+        }
+    }
+
+    private static void benchSearch(PrintStream console, String filter) {
+        long started = System.nanoTime();
+        SearchIndex index = new SearchIndex(null);
+        Random random = new Random(42);
+        List<MessageLog.Entry> batch = new ArrayList<>();
+        long time = System.currentTimeMillis() - SEARCH_MESSAGES * 1000L;
+        for (int id = 1; id <= SEARCH_MESSAGES; id++) {
+            StringBuilder text = new StringBuilder("[Fri Nov 07 16:12:34 HKT 2025] user").append(random.nextInt(500)).append(":");
+            for (int w = 0; w < 8; w++) {
+                // Cubing skews the vocabulary: a few words are everywhere, most are rare.
+                double r = random.nextDouble();
+                text.append(" w").append((int) (20_000 * r * r * r));
+            }
+            batch.add(new MessageLog.Entry(id, time + id * 1000L, "room" + (id % 10), text.toString()));
+            if (batch.size() == 1024) {
+                index.index(batch);
+                batch.clear();
+            }
+        }
+        index.index(batch);
+        console.printf("  indexed %d messages in %d ms%n", SEARCH_MESSAGES, (System.nanoTime() - started) / 1_000_000);
+        long now = time + SEARCH_MESSAGES * 1000L;
+        search(console, filter, index, "search common word", "w0", now);
+        search(console, filter, index, "search rare word", "w19000", now);
+        search(console, filter, index, "search two words", "w5 w40", now);
+        search(console, filter, index, "search unrelated words", "w300 w9000", now);
+        search(console, filter, index, "search from: and word", "w3 from:user7", now);
+        search(console, filter, index, "search since:1d, page 5", "w2 w8 since:1d page:5", now);
+    }
+
+    private static void search(PrintStream console, String filter, SearchIndex index, String name, String query, long now) {
+        SearchIndex.Query parsed = SearchIndex.Query.parse(query, now);
+        run(console, filter, name, () -> index.search("room3", parsed).ids.length);
+    }
+
+    // Goes through the same steps as a new connection: prompt, optional "/hello", username.
+    private static ClientHandler connect(String username, boolean framed) {
+        SinkTransport transport = new SinkTransport();
+        ClientHandler handler = new ClientHandler(transport);
+        transport.handler = handler;
+        ChatServer.addClient(handler);
+        handler.start();
+        if (framed) {
+            handler.handleLine("/hello " + Frame.PROTOCOL_VERSION);
+        }
+        handler.handleLine(username);
+        return handler;
+    }
+
+    private static void run(PrintStream console, String filter, String name, Op op) {
+        if (!name.contains(filter)) return;
+
+        // Grow the batch until one takes about a millisecond, so reading the clock is noise.
+        int batch = 1;
+        while (batch < (1 << 24) && time(op, batch) < 1_000_000L) {
+            batch <<= 1;
+        }
+        for (int i = 0; i < WARMUP; i++) {
+            iteration(op, batch);
+        }
+        double[] scores = new double[ITERATIONS];
+        double mean = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            scores[i] = iteration(op, batch);
+            mean += scores[i] / ITERATIONS;
+        }
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        double deviation = ITERATIONS > 1 ? Math.sqrt(variance / (ITERATIONS - 1)) : 0;
+        console.printf("%-32s %5d %12.1f %10s  ns/op%n", name, ITERATIONS, mean, String.format("+- %.1f", deviation));
+    }
+
+    // Runs whole batches for one iteration's worth of time and returns the mean ns per operation.
+    private static double iteration(Op op, int batch) {
+        long ops = 0;
+        long elapsed = 0;
+        while (elapsed < ITERATION_NANOS) {
+            elapsed += time(op, batch);
+            ops += batch;
+        }
+        return (double) elapsed / ops;
+    }
+
+    private static long time(Op op, int batch) {
+        long result = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < batch; i++) {
+            result += op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        sink += result;
+        return elapsed;
+    }
+}
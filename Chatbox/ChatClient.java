@@ -1,22 +1,327 @@
 package com.mycompany.chatclient;
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.HyperlinkEvent;
+import javax.swing.text.Element;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class ChatClient {
     private JFrame frame;
     private JTextPane chatArea;
+    private HTMLDocument chatDocument;
+    private Element chatBody;
+    private int renderedMessages;
     private JTextArea inputField;
     private JButton sendButton;
+    private JButton fileButton;
     private Socket socket;
+    private DataInputStream in;
     private PrintWriter writer;
+    private DataOutputStream frameOut;
+    private boolean framed;
+    private long lastMessageId; // id of the newest history message received, for resuming
+    // Room the server last put us in, so a reconnect goes back to it; only the reading thread
+    // writes it, and only it and the connecting thread read it
+    private volatile String room = "lobby";
+    private static final String JOINED_ROOM = "*** You have joined #";
     private String username;
     private JLabel statusLabel;
+    private volatile boolean closing;
+
+    // After a dropped connection the client reconnects on its own, waiting a random time between
+    // half and all of an exponentially growing delay so many clients don't return in lockstep
+    private static final long RECONNECT_BASE_MILLIS = 100;
+    private static final long RECONNECT_MAX_MILLIS = 10_000;
+    // A connection that stayed up this long resets the delay
+    private static final long STABLE_CONNECTION_MILLIS = 10_000;
+    private int reconnectFailures;
+    // -Dchat.username=name joins without asking
+    private static final String PRESET_USERNAME = System.getProperty("chat.username");
+    private static final long LAUNCHED_AT = System.nanoTime();
+    // A resume replays what was missed, which can overlap with what arrives live or what was
+    // already shown; messages up to resumeAfter and ids seen recently are dropped
+    private long resumeAfter;
+    private final Set<Long> recentIds = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > 2048;
+        }
+    });
+
+    // Binary framing (see Frame on the server); set -Dchat.protocol=text to stay on plain lines
+    private static final int PROTOCOL_VERSION = 1;
+    private static final byte FRAME_TEXT = 1;
+    private static final byte FRAME_MESSAGE = 2;
+    private static final byte FRAME_BATCH = 3;
+    private static final byte FRAME_PING = 4;
+    private static final byte FRAME_PONG = 5;
+    private static final byte FRAME_DEFLATED = (byte) 0x80;
+    private static final int MAX_FRAME_LENGTH = 1 << 20;
+    private static final int MAX_INFLATED_LENGTH = 16 << 20;
+    private static final boolean TRY_FRAMING = !"text".equals(System.getProperty("chat.protocol"));
+    // Ask the server to deflate large frames; -Dchat.compress=false to turn off
+    private static final boolean COMPRESSION = !"false".equals(System.getProperty("chat.compress"));
+    private final Inflater inflater = new Inflater();
+    // Messages unpacked from a BATCH frame that readMessage hasn't returned yet
+    private final ArrayDeque<InboundMessage> unpacked = new ArrayDeque<>();
+    // Heartbeat interval the server announced in "/hello-ok"; 0 when it doesn't ping. A
+    // connection silent this long gets a PING, and is given up on if that goes unanswered.
+    private int heartbeatMillis;
+    private boolean pingOutstanding;
+
+    // File transfers, framed connections only. An upload sends CHUNK frames no further ahead
+    // than the server's last UPLOAD_ACK allows; a download is written to "<target>.part" chunk
+    // by chunk as it arrives and renamed when complete. After a reconnect both carry on from
+    // where they stopped.
+    private static final byte FRAME_UPLOAD = 6;
+    private static final byte FRAME_CHUNK = 7;
+    private static final byte FRAME_UPLOAD_ACK = 8;
+    private static final byte FRAME_DOWNLOAD = 9;
+    // A shared file, from the server only; a chat line that looks like one is just text
+    private static final byte FRAME_FILE = 12;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private final Map<Long, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<Long, Download> downloads = new ConcurrentHashMap<>();
+
+    // Outgoing chat lines. The EDT only puts them in the outbox; the chat-sender thread writes
+    // whatever has piled up with one flush. When the server acknowledges SEND frames (it lists
+    // "send" in "/hello-ok") each line stays pending until its SEND_ACK. Lines typed while
+    // offline wait in the outbox, and unacknowledged ones go back into it when the connection
+    // drops; the session id lets the server skip the ones it already had. PINGs and PONGs go the
+    // same way, so the reading thread never waits for the write lock while a write is stuck.
+    private static final byte FRAME_SEND = 10;
+    private static final byte FRAME_SEND_ACK = 11;
+    private static final int MAX_SEND_BATCH = 256;
+    private final String sessionId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final Outbox outbox = new Outbox();
+    private boolean acknowledged; // the server answers SEND frames
+    private Thread sender;
+
+    // Oldest bubbles are dropped past this many, so appends stay cheap in long sessions;
+    // they go a batch at a time because each document removal has a fixed cost
+    private static final int MAX_RENDERED_MESSAGES = Integer.getInteger("chat.maxMessages", 500);
+    private static final int EVICTION_BATCH = Math.max(1, MAX_RENDERED_MESSAGES / 10);
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm");
+    private static final Pattern BRACKETED = Pattern.compile("\\[.*?\\]\\s*");
+
+    // Inbound messages are sorted on the reading thread and rendered on the EDT in batches,
+    // at most one batch per frame and only as much as fits in the frame's budget
+    private static final int FRAME_MILLIS = 16;
+    private static final long FRAME_BUDGET_NANOS = 8_000_000L;
+    private final Queue<InboundMessage> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inboundCount = new AtomicInteger();
+    private final AtomicBoolean inboundScheduled = new AtomicBoolean();
+    private javax.swing.Timer frameTimer;
+    private long lastInboundFrame;
+
+    // A server message already sorted into what appendMessage needs, or with no type yet
+    // when it still has to go through classify()
+    private static final class InboundMessage {
+        final String text;
+        final String type;
+
+        InboundMessage(String text, String type) {
+            this.text = text;
+            this.type = type;
+        }
+
+        InboundMessage(String text) {
+            this(text, null);
+        }
+    }
+
+    private static final class Upload {
+        final long id;
+        final File file;
+        final long size;
+        // Guarded by this: what the server has stored, how far it lets us send, and what goes
+        // next. A reconnect bumps the generation so nothing read for the old connection is sent
+        // on the new one before the server says where to resume.
+        long stored;
+        long limit;
+        long next;
+        int generation;
+        boolean resync = true;
+
+        Upload(long id, File file, long size) {
+            this.id = id;
+            this.file = file;
+            this.size = size;
+        }
+
+        synchronized void acked(long ackStored, long ackLimit) {
+            if (resync) {
+                next = ackStored;
+                resync = false;
+            }
+            stored = ackStored;
+            limit = ackLimit;
+            notifyAll();
+        }
+
+        synchronized void restart() {
+            generation++;
+            resync = true;
+            limit = 0;
+        }
+    }
+
+    // Only touched by the reading thread once it's in the map
+    private static final class Download {
+        final long id;
+        final String name;
+        final File target;
+        final File partial;
+        final FileChannel channel;
+        long position;
+        long size = -1;
+
+        Download(long id, String name, File target, File partial, FileChannel channel) throws IOException {
+            this.id = id;
+            this.name = name;
+            this.target = target;
+            this.partial = partial;
+            this.channel = channel;
+            this.position = channel.size();
+        }
+    }
+
+    private static final class Outgoing {
+        final long sequence;
+        final String text;
+
+        Outgoing(long sequence, String text) {
+            this.sequence = sequence;
+            this.text = text;
+        }
+    }
+
+    // Lines waiting to be sent, in order, and lines sent but not yet acknowledged. The
+    // generation changes with every lost connection, so a batch taken for an old connection is
+    // never written to a new one ahead of the lines it lost.
+    private static final class Outbox {
+        private final TreeMap<Long, Outgoing> queued = new TreeMap<>();
+        private final Map<Long, Outgoing> unacknowledged = new HashMap<>();
+        private long nextSequence;
+        private boolean online;
+        private boolean acknowledging;
+        private int generation;
+        // Heartbeat frames owed on the current connection, written ahead of the next batch
+        private boolean pingDue;
+        private boolean pongDue;
+
+        synchronized Outgoing add(String text) {
+            Outgoing outgoing = new Outgoing(++nextSequence, text);
+            queued.put(outgoing.sequence, outgoing);
+            notifyAll();
+            return outgoing;
+        }
+
+        synchronized void ping() {
+            pingDue = true;
+            notifyAll();
+        }
+
+        synchronized void pong() {
+            pongDue = true;
+            notifyAll();
+        }
+
+        // Waits until there is a connection and something to send, then moves any heartbeat
+        // frames owed into heartbeats and up to max lines into batch; returns the generation
+        // they were taken in
+        synchronized int take(List<Outgoing> batch, List<Byte> heartbeats, int max) throws InterruptedException {
+            while (!online || (queued.isEmpty() && !pingDue && !pongDue)) {
+                wait();
+            }
+            if (pingDue) {
+                heartbeats.add(FRAME_PING);
+                pingDue = false;
+            }
+            if (pongDue) {
+                heartbeats.add(FRAME_PONG);
+                pongDue = false;
+            }
+            while (batch.size() < max && !queued.isEmpty()) {
+                Outgoing outgoing = queued.pollFirstEntry().getValue();
+                batch.add(outgoing);
+                if (acknowledging) {
+                    unacknowledged.put(outgoing.sequence, outgoing);
+                }
+            }
+            return generation;
+        }
+
+        synchronized boolean isCurrent(int taken) {
+            return online && generation == taken;
+        }
+
+        synchronized boolean isAcknowledging() {
+            return acknowledging;
+        }
+
+        synchronized Outgoing acknowledged(long sequence) {
+            return unacknowledged.remove(sequence);
+        }
+
+        // Lines that couldn't be written go back to be sent first
+        synchronized void requeue(List<Outgoing> batch) {
+            for (Outgoing outgoing : batch) {
+                unacknowledged.remove(outgoing.sequence);
+                queued.put(outgoing.sequence, outgoing);
+            }
+        }
+
+        synchronized void online(boolean acknowledging) {
+            this.acknowledging = acknowledging;
+            online = true;
+            notifyAll();
+        }
+
+        synchronized void offline() {
+            online = false;
+            generation++;
+            pingDue = false;
+            pongDue = false;
+            queued.putAll(unacknowledged);
+            unacknowledged.clear();
+        }
+    }
 
     // WeChat-style colors
     private static final Color WECHAT_GREEN = new Color(76, 175, 80);
@@ -71,9 +376,22 @@ public class ChatClient {
         chatArea.setFont(new Font("Segoe UI", Font.PLAIN, 14));
         chatArea.setContentType("text/html");
         chatArea.setText("<html><body style='margin: 0; padding: 10px;'></body></html>");
+        chatDocument = (HTMLDocument) chatArea.getDocument();
+        chatBody = chatDocument.getElement(chatDocument.getDefaultRootElement(),
+                StyleConstants.NameAttribute, HTML.Tag.BODY);
         JScrollPane chatScroll = new JScrollPane(chatArea);
         chatScroll.setBorder(new LineBorder(new Color(220, 220, 220)));
         chatScroll.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        chatArea.addHyperlinkListener(e -> {
+            if (e.getEventType() == HyperlinkEvent.EventType.ACTIVATED && e.getDescription().startsWith("download:")) {
+                String[] link = e.getDescription().split(":", 3);
+                try {
+                    startDownload(Long.parseUnsignedLong(link[1], 16), URLDecoder.decode(link[2], "UTF-8"));
+                } catch (UnsupportedEncodingException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        });
         chatPanel.add(chatScroll, BorderLayout.CENTER);
 
         // Input panel
@@ -120,6 +438,18 @@ public class ChatClient {
         sendButton.setOpaque(true);
         sendButton.setEnabled(false); // Disabled until connected
 
+        // File button - sends an attachment
+        fileButton = new JButton("File");
+        fileButton.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        fileButton.setBackground(WECHAT_WHITE);
+        fileButton.setForeground(Color.DARK_GRAY);
+        fileButton.setPreferredSize(new Dimension(70, 40));
+        fileButton.setFocusPainted(false);
+        fileButton.setBorderPainted(false);
+        fileButton.setOpaque(true);
+        fileButton.setEnabled(false); // Disabled until connected
+
+        buttonPanel.add(fileButton);
         buttonPanel.add(sendButton);
 
         // Assemble input panel
@@ -131,40 +461,32 @@ public class ChatClient {
         frame.add(chatPanel, BorderLayout.CENTER);
         frame.add(inputPanel, BorderLayout.SOUTH);
 
+        frameTimer = new javax.swing.Timer(FRAME_MILLIS, e -> applyInbound());
+        frameTimer.setRepeats(false);
+
         // Welcome message
         appendWelcomeMessage();
 
         // Event listeners
         sendButton.addActionListener(e -> sendMessage());
+        fileButton.addActionListener(e -> sendFile());
 
         // Window closing handler
         frame.addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
-                if (socket != null && !socket.isClosed()) {
-                    try {
-                        writer.println("/exit");
-                        socket.close();
-                    } catch (IOException ex) {
-                        ex.printStackTrace();
-                    }
-                }
+                // No "/exit": writing takes the lock the sender and uploads hold while they
+                // write, and the EDT mustn't wait on a slow socket. The server treats the
+                // closed connection the same way.
+                closing = true;
+                closeSocket();
             }
         });
 
         frame.setVisible(true);
         
         // AUTO-CONNECT
-        SwingUtilities.invokeLater(() -> {
-            new Thread(() -> {
-                try {
-                    Thread.sleep(500);
-                    SwingUtilities.invokeLater(() -> connectToServer());
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
-                }
-            }).start();
-        });
+        connectToServer();
     }
 
     private void appendWelcomeMessage() {
@@ -172,150 +494,766 @@ public class ChatClient {
         appendMessage("Shift+Enter for new lines | Enter to send", "system");
     }
 
+    // Connects and joins on a background thread, retrying with backoff until it succeeds. After a
+    // dropped connection the same username is reused and the server replays what was missed.
     private void connectToServer() {
-        inputField.setEnabled(false);
-        sendButton.setEnabled(false);
-        statusLabel.setText("Connecting...");
+        // Once joined, typing carries on while reconnecting; the outbox holds on to the lines
+        if (username == null) {
+            inputField.setEnabled(false);
+            sendButton.setEnabled(false);
+        }
+        fileButton.setEnabled(false);
+        statusLabel.setText(username == null ? "Connecting..." : "Reconnecting...");
+        if (sender == null) {
+            sender = new Thread(this::runSender, "chat-sender");
+            sender.setDaemon(true);
+            sender.start();
+        }
 
         new Thread(() -> {
-            try {
-                //Server code : socket = new Socket(xxx.xx.xx.xx);
-                writer = new PrintWriter(socket.getOutputStream(), true);
+            while (!closing) {
+                try {
+                    if (reconnectFailures > 0) {
+                        Thread.sleep(reconnectDelay(reconnectFailures));
+                    }
+                    long started = System.nanoTime();
+                    join();
+                    long connectedAt = System.nanoTime();
+                    String joinedIn = String.format("Joined in %.1f ms (%.1f ms since launch)",
+                            (connectedAt - started) / 1e6, (connectedAt - LAUNCHED_AT) / 1e6);
 
-                // Get username with validation
-                boolean usernameAccepted = false;
-                while (!usernameAccepted) {
-                    final String[] tempUsername = new String[1];
-                    
-                    SwingUtilities.invokeAndWait(() -> {
-                        tempUsername[0] = JOptionPane.showInputDialog(
-                            frame, 
-                            "Enter your username (must be unique):", 
-                            "Join Chat", 
-                            JOptionPane.PLAIN_MESSAGE
-                        );
+                    // Update UI on success
+                    SwingUtilities.invokeLater(() -> {
+                        statusLabel.setText("Online");
+                        statusLabel.setToolTipText(joinedIn);
+                        inputField.setEnabled(true);
+                        sendButton.setEnabled(true);
+                        fileButton.setEnabled(true);
+                        inputField.requestFocus();
                     });
-                    
-                    if (tempUsername[0] == null) {
-                        // User cancelled, use random name
-                        tempUsername[0] = "User" + (int)(Math.random() * 10000);
-                        username = tempUsername[0];
-                        writer.println(username);
-                        usernameAccepted = true;
-                    } else if (tempUsername[0].trim().isEmpty()) {
-                        // Empty username, show error and retry
-                        SwingUtilities.invokeAndWait(() -> {
-                            JOptionPane.showMessageDialog(
-                                frame, 
-                                "Username cannot be empty. Please enter a username.", 
-                                "Invalid Username", 
-                                JOptionPane.WARNING_MESSAGE
-                            );
-                        });
-                    } else {
-                        // Try the username
-                        username = tempUsername[0].trim();
-                        writer.println(username);
-                        
-                        // Wait for server response
-                        Thread.sleep(500);
-                        usernameAccepted = true;
-                    }
+
+                    resumeTransfers();
+                    // Start reading messages
+                    startReadingFromServer(connectedAt);
+                    outbox.online(framed && acknowledged);
+                    return;
+                } catch (IOException e) {
+                    closeSocket();
+                    reconnectFailures++;
+                    SwingUtilities.invokeLater(() -> statusLabel.setText("Offline, retrying..."));
+                } catch (InterruptedException | InvocationTargetException e) {
+                    closeSocket();
+                    SwingUtilities.invokeLater(() -> statusLabel.setText("Offline"));
+                    return;
                 }
-                
-                // Update UI on success
-                SwingUtilities.invokeLater(() -> {
-                    statusLabel.setText("Online");
-                    inputField.setEnabled(true);
-                    sendButton.setEnabled(true);
-                    inputField.requestFocus();
-                });
+            }
+        }, "chat-connect").start();
+    }
+
+    private static long reconnectDelay(int failures) {
+        long delay = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(failures - 1, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    // Opens a connection and claims a username, asking for another while the server refuses it
+    private void join() throws IOException, InterruptedException, InvocationTargetException {
+        openConnection(TRY_FRAMING);
+        if (TRY_FRAMING && !framed) {
+            // Older server: it took "/hello" as a username, so start over in text mode
+            sendLine("/exit");
+            socket.close();
+            openConnection(false);
+        }
+
+        String name = username != null ? username : PRESET_USERNAME;
+        while (true) {
+            if (name == null) {
+                name = askUsername();
+            }
+            sendLine(name);
+            String reply = awaitJoinReply();
+            if (reply.startsWith("Welcome, ")) {
+                username = name;
+                queueInbound(classify(reply));
+                return;
+            }
+            boolean taken = reply.startsWith("Username already taken");
+            if (taken && username != null) {
+                // Our old connection may not have been noticed as gone yet; try again after a delay
+                throw new IOException("Username " + name + " is still in use");
+            }
+            String refused = name;
+            SwingUtilities.invokeAndWait(() -> {
+                if (taken) {
+                    JOptionPane.showMessageDialog(frame, "Username '" + refused + "' is already taken. Please choose another.", "Username Taken", JOptionPane.WARNING_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(frame, reply, "Invalid Username", JOptionPane.WARNING_MESSAGE);
+                }
+            });
+            name = null;
+        }
+    }
+
+    // The server answers a username with "Welcome, <name>!", "Username already taken" or
+    // "Invalid username, <rules>"; returns whichever came
+    private String awaitJoinReply() throws IOException {
+        while (true) {
+            InboundMessage reply = readMessage(in);
+            if (reply == null) {
+                throw new EOFException("Connection closed while joining");
+            } else if (reply.text.startsWith("Welcome, ") || reply.text.startsWith("Username already taken")
+                    || reply.text.startsWith("Invalid username")) {
+                return reply.text;
+            }
+        }
+    }
 
-                // Start reading messages
-                startReadingFromServer();
+    private String askUsername() throws InterruptedException, InvocationTargetException {
+        // Get username with validation
+        while (true) {
+            final String[] tempUsername = new String[1];
+
+            SwingUtilities.invokeAndWait(() -> {
+                tempUsername[0] = JOptionPane.showInputDialog(
+                    frame, 
+                    "Enter your username (must be unique):", 
+                    "Join Chat", 
+                    JOptionPane.PLAIN_MESSAGE
+                );
+            });
 
-            } catch (Exception e) {
-                SwingUtilities.invokeLater(() -> {
-                    statusLabel.setText("Offline");
-                    inputField.setEnabled(false);
+            if (tempUsername[0] == null) {
+                // User cancelled, use random name
+                return "User" + (int)(Math.random() * 10000);
+            } else if (tempUsername[0].trim().isEmpty()) {
+                // Empty username, show error and retry
+                SwingUtilities.invokeAndWait(() -> {
+                    JOptionPane.showMessageDialog(
+                        frame, 
+                        "Username cannot be empty. Please enter a username.", 
+                        "Invalid Username", 
+                        JOptionPane.WARNING_MESSAGE
+                    );
                 });
+            } else {
+                return tempUsername[0].trim();
             }
-        }).start();
+        }
     }
 
-    private void startReadingFromServer() {
+    private void closeSocket() {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    // Connects and reads the username prompt; when asked, also negotiates binary framing and,
+    // on a reconnect, asks for the messages after the last one received
+    private void openConnection(boolean tryFraming) throws IOException {
+        framed = false;
+        acknowledged = false;
+        unpacked.clear();
+        //Server code : socket = new Socket(xxx.xx.xx.xx);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        // Flushed explicitly, so a batch of lines goes out in one write
+        writer = new PrintWriter(socket.getOutputStream(), false);
+        readLine(in); // "Enter your username:"
+        if (tryFraming) {
+            resumeAfter = lastMessageId;
+            writer.println("/hello " + PROTOCOL_VERSION + (COMPRESSION ? " deflate" : "")
+                    + (lastMessageId > 0 ? " since=" + lastMessageId : "") + " room=" + room + " session=" + sessionId);
+            writer.flush();
+            String reply = readLine(in);
+            if (reply != null && reply.startsWith("/hello-ok ")) {
+                frameOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                framed = true;
+                heartbeatMillis = 0;
+                for (String option : reply.split(" ")) {
+                    if (option.startsWith("heartbeat=")) {
+                        heartbeatMillis = Integer.parseInt(option.substring(10)) * 1000;
+                    } else if (option.equals("send")) {
+                        acknowledged = true;
+                    }
+                }
+                pingOutstanding = false;
+                socket.setSoTimeout(heartbeatMillis);
+            }
+        }
+    }
+
+    // Sends one line, or one TEXT frame once framing is agreed (frames may contain newlines)
+    private synchronized void sendLine(String line) {
+        if (!framed) {
+            writer.println(line);
+            writer.flush();
+            return;
+        }
+        sendFrame(FRAME_TEXT, line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private synchronized void sendFrame(byte type, byte[] payload) {
+        try {
+            frameOut.writeInt(payload.length + 1);
+            frameOut.writeByte(type);
+            frameOut.write(payload);
+            frameOut.flush();
+        } catch (IOException e) {
+            // Like PrintWriter: the reading thread notices the dead connection
+        }
+    }
+
+    private void runSender() {
+        List<Outgoing> batch = new ArrayList<>();
+        List<Byte> heartbeats = new ArrayList<>();
+        try {
+            while (!closing) {
+                batch.clear();
+                heartbeats.clear();
+                int generation = outbox.take(batch, heartbeats, MAX_SEND_BATCH);
+                boolean written;
+                boolean acknowledging;
+                synchronized (this) {
+                    acknowledging = outbox.isAcknowledging();
+                    written = outbox.isCurrent(generation) && writeHeartbeats(heartbeats)
+                            && writeBatch(batch, acknowledging);
+                }
+                if (!written) {
+                    outbox.requeue(batch);
+                } else if (!acknowledging && !batch.isEmpty()) {
+                    // Nothing will confirm these; as far as this side can tell they're out
+                    List<Outgoing> sent = new ArrayList<>(batch);
+                    SwingUtilities.invokeLater(() -> {
+                        for (Outgoing outgoing : sent) {
+                            showSendStatus(outgoing.sequence, "Sent");
+                        }
+                    });
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closing
+        }
+    }
+
+    // Like writeBatch, and ahead of it; the batch's flush sends these too
+    private boolean writeHeartbeats(List<Byte> heartbeats) {
+        if (heartbeats.isEmpty() || !framed) return true;
+        try {
+            for (byte type : heartbeats) {
+                frameOut.writeInt(1);
+                frameOut.writeByte(type);
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Called holding the lock sendLine and sendFrame use, so nothing else is written in between
+    private boolean writeBatch(List<Outgoing> batch, boolean acknowledging) {
+        if (!framed) {
+            for (Outgoing outgoing : batch) {
+                writer.println(outgoing.text);
+            }
+            writer.flush();
+            return !writer.checkError();
+        }
+        try {
+            for (Outgoing outgoing : batch) {
+                byte[] text = outgoing.text.getBytes(StandardCharsets.UTF_8);
+                if (acknowledging) {
+                    frameOut.writeInt(1 + 8 + text.length);
+                    frameOut.writeByte(FRAME_SEND);
+                    frameOut.writeLong(outgoing.sequence);
+                } else {
+                    frameOut.writeInt(1 + text.length);
+                    frameOut.writeByte(FRAME_TEXT);
+                }
+                frameOut.write(text);
+            }
+            frameOut.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Next message from the server, or null at end of stream. With a heartbeat, a quiet
+    // connection throws SocketTimeoutException between frames; inside one it's an IOException.
+    private InboundMessage readMessage(DataInputStream input) throws IOException {
+        if (!framed) {
+            String line = readLine(input);
+            return line == null ? null : new InboundMessage(line);
+        }
+        while (unpacked.isEmpty()) {
+            int first = input.read();
+            if (first < 0) {
+                return null;
+            }
+            pingOutstanding = false;
+            try {
+                readFrame(input, first);
+            } catch (SocketTimeoutException e) {
+                throw new IOException("Timed out in the middle of a frame", e);
+            }
+        }
+        return unpacked.poll();
+    }
+
+    private void readFrame(DataInputStream input, int first) throws IOException {
+        int length = (first << 24) | (input.readUnsignedByte() << 16) | input.readUnsignedShort();
+        if (length < 1 || length - 1 > MAX_FRAME_LENGTH) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte type = input.readByte();
+        byte[] payload = new byte[length - 1];
+        input.readFully(payload);
+        if ((type & FRAME_DEFLATED) != 0) {
+            type &= ~FRAME_DEFLATED;
+            payload = inflate(payload);
+        }
+        if (type == FRAME_BATCH) {
+            DataInputStream frames = new DataInputStream(new ByteArrayInputStream(payload));
+            while (frames.available() > 0) {
+                byte[] part = new byte[frames.readInt() - 1];
+                byte partType = frames.readByte();
+                frames.readFully(part);
+                unpack(partType, part);
+            }
+        } else {
+            unpack(type, payload);
+        }
+    }
+
+    private void unpack(byte type, byte[] payload) throws IOException {
+        if (type == FRAME_PING) {
+            outbox.pong();
+        } else if (type == FRAME_CHUNK && payload.length >= 16) {
+            receiveChunk(ByteBuffer.wrap(payload));
+        } else if (type == FRAME_UPLOAD_ACK && payload.length >= 24) {
+            ByteBuffer ack = ByteBuffer.wrap(payload);
+            Upload upload = uploads.get(ack.getLong());
+            if (upload != null) {
+                upload.acked(ack.getLong(), ack.getLong());
+            }
+        } else if (type == FRAME_DOWNLOAD && payload.length >= 24) {
+            ByteBuffer info = ByteBuffer.wrap(payload);
+            Download download = downloads.get(info.getLong());
+            if (download != null) {
+                download.size = info.getLong();
+                if (info.getLong() != download.position || download.position > download.size) {
+                    failDownload(download, "the server sent the wrong part");
+                } else if (download.position == download.size) {
+                    finishDownload(download);
+                }
+            }
+        } else if (type == FRAME_SEND_ACK && payload.length >= 16) {
+            ByteBuffer ack = ByteBuffer.wrap(payload);
+            long sequence = ack.getLong();
+            String status = ack.getLong() < 0 ? "Not delivered" : "Delivered";
+            if (outbox.acknowledged(sequence) != null) {
+                SwingUtilities.invokeLater(() -> showSendStatus(sequence, status));
+            }
+        } else if (type == FRAME_TEXT) {
+            unpacked.add(new InboundMessage(new String(payload, StandardCharsets.UTF_8)));
+        } else if (type == FRAME_MESSAGE && payload.length >= 8) {
+            long id = new DataInputStream(new ByteArrayInputStream(payload)).readLong();
+            if (id <= resumeAfter || !recentIds.add(id)) {
+                return; // already shown
+            }
+            lastMessageId = Math.max(lastMessageId, id);
+            String text = new String(payload, 8, payload.length - 8, StandardCharsets.UTF_8);
+            if (!isOwnMessage(text)) {
+                unpacked.add(new InboundMessage(text));
+            }
+        } else if (type == FRAME_FILE && payload.length >= 24) {
+            ByteBuffer file = ByteBuffer.wrap(payload);
+            long id = file.getLong();
+            if (id != 0 && (id <= resumeAfter || !recentIds.add(id))) {
+                return; // already shown
+            }
+            lastMessageId = Math.max(lastMessageId, id);
+            String fileId = String.format("%016x", file.getLong());
+            String size = describeSize(file.getLong());
+            // "<name>\n<uploader>"; file names never contain a newline
+            String names = StandardCharsets.UTF_8.decode(file).toString();
+            if (names.indexOf('\n') > 0) {
+                unpacked.add(new InboundMessage(fileId + "\n" + size + "\n" + names, "attachment"));
+            }
+        }
+    }
+
+    // The server never echoes our messages back live, so one of ours here is a replay of
+    // something already shown when it was sent
+    private boolean isOwnMessage(String text) {
+        int start = text.startsWith("[") ? text.indexOf("] ") + 2 : 0;
+        return username != null && start >= 0 && text.startsWith(username + ": ", start);
+    }
+
+    // Each chunk goes to disk as it arrives, so a download never has to fit in memory
+    private void receiveChunk(ByteBuffer chunk) {
+        Download download = downloads.get(chunk.getLong());
+        if (download == null || download.size < 0 || chunk.getLong() != download.position) {
+            return;
+        }
+        try {
+            while (chunk.hasRemaining()) {
+                download.position += download.channel.write(chunk, download.position);
+            }
+            if (download.position >= download.size) {
+                finishDownload(download);
+            }
+        } catch (IOException e) {
+            failDownload(download, e.getMessage());
+        }
+    }
+
+    private void finishDownload(Download download) {
+        downloads.remove(download.id);
+        try {
+            download.channel.close();
+            Files.move(download.partial.toPath(), download.target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            queueInbound(new InboundMessage("Saved " + download.name + " to " + download.target, "system"));
+        } catch (IOException e) {
+            queueInbound(new InboundMessage("Could not save " + download.name + ": " + e.getMessage(), "system"));
+        }
+    }
+
+    // The partial file stays, so asking for the same file again resumes it
+    private void failDownload(Download download, String reason) {
+        downloads.remove(download.id);
+        try {
+            download.channel.close();
+        } catch (IOException e) {
+            // Nothing more to lose
+        }
+        queueInbound(new InboundMessage("Download of " + download.name + " failed: " + reason, "system"));
+    }
+
+    // On the EDT, from the link in an attachment bubble
+    private void startDownload(long id, String name) {
+        if (!framed) {
+            appendMessage("Downloads need a connection to a server that supports framing", "system");
+            return;
+        }
+        if (downloads.containsKey(id)) {
+            appendMessage(name + " is already downloading", "system");
+            return;
+        }
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File(name));
+        if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File target = chooser.getSelectedFile();
+        File partial = new File(target.getPath() + ".part");
+        try {
+            FileChannel channel = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            Download download = new Download(id, name, target, partial, channel);
+            downloads.put(id, download);
+            // Off the EDT, as sendLine can wait behind the sender or an upload's chunk
+            Thread requester = new Thread(() -> sendLine("/download " + String.format("%016x", id) + " " + download.position),
+                    "chat-download");
+            requester.setDaemon(true);
+            requester.start();
+            appendMessage("Downloading " + name + "...", "system");
+        } catch (IOException e) {
+            appendMessage("Could not write " + target + ": " + e.getMessage(), "system");
+        }
+    }
+
+    // On the EDT, from the File button; the upload itself runs on its own thread
+    private void sendFile() {
+        if (!framed) {
+            appendMessage("Sending files needs a connection to a server that supports framing", "system");
+            return;
+        }
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        // Derived from the file, so sending the same file again resumes an interrupted upload
+        long id = UUID.nameUUIDFromBytes((file.getAbsolutePath() + "\0" + file.length() + "\0" + file.lastModified())
+                .getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
+        Upload upload = new Upload(id, file, file.length());
+        if (uploads.putIfAbsent(id, upload) != null) {
+            appendMessage(file.getName() + " is already being sent", "system");
+            return;
+        }
+        appendMessage("Sending " + file.getName() + "...", "system");
+        Thread uploader = new Thread(() -> runUpload(upload), "chat-upload");
+        uploader.setDaemon(true);
+        uploader.start();
+    }
+
+    private void runUpload(Upload upload) {
+        try (FileChannel channel = FileChannel.open(upload.file.toPath(), StandardOpenOption.READ)) {
+            sendUploadBegin(upload);
+            while (true) {
+                long offset;
+                int length;
+                int generation;
+                synchronized (upload) {
+                    while (!closing && upload.limit >= 0 && upload.stored < upload.size && upload.next >= upload.limit) {
+                        upload.wait();
+                    }
+                    if (closing || upload.limit < 0 || upload.stored >= upload.size) {
+                        break;
+                    }
+                    offset = upload.next;
+                    length = (int) Math.min(CHUNK_SIZE, upload.limit - offset);
+                    generation = upload.generation;
+                }
+                byte[] payload = new byte[16 + length];
+                ByteBuffer chunk = ByteBuffer.wrap(payload);
+                chunk.putLong(upload.id).putLong(offset);
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk, offset + chunk.position() - 16) < 0) {
+                        throw new EOFException("the file got shorter");
+                    }
+                }
+                synchronized (upload) {
+                    if (upload.generation == generation) {
+                        sendFrame(FRAME_CHUNK, payload);
+                        upload.next = offset + length;
+                    }
+                }
+            }
+            // Once complete, the server's announcement of the file shows up like anyone else's
+        } catch (IOException e) {
+            queueInbound(new InboundMessage("Sending " + upload.file.getName() + " failed: " + e.getMessage(), "system"));
+        } catch (InterruptedException e) {
+            // Closing
+        } finally {
+            uploads.remove(upload.id);
+        }
+    }
+
+    private void sendUploadBegin(Upload upload) {
+        byte[] name = upload.file.getName().getBytes(StandardCharsets.UTF_8);
+        sendFrame(FRAME_UPLOAD, ByteBuffer.allocate(16 + name.length)
+                .putLong(upload.id).putLong(upload.size).put(name).array());
+    }
+
+    // Right after a (re)connect: the server answers each upload with where to carry on, and each
+    // download is asked for again from the end of its partial file
+    private void resumeTransfers() {
+        for (Upload upload : uploads.values()) {
+            upload.restart();
+            if (framed) {
+                sendUploadBegin(upload);
+            } else {
+                upload.acked(0, -1);
+            }
+        }
+        for (Download download : downloads.values()) {
+            if (framed) {
+                sendLine("/download " + String.format("%016x", download.id) + " " + download.position);
+            } else {
+                failDownload(download, "the server no longer supports framing");
+            }
+        }
+    }
+
+    private byte[] inflate(byte[] compressed) throws IOException {
+        inflater.reset();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                out.write(buffer, 0, n);
+                if (out.size() > MAX_INFLATED_LENGTH) {
+                    throw new IOException("Compressed frame too large");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed frame", e);
+        }
+        return out.toByteArray();
+    }
+
+    // Reads up to "\n" without buffering past it, so the stream can switch to frames afterwards
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString();
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    private void startReadingFromServer(long connectedAt) {
         Thread readThread = new Thread(() -> {
             try {
-                BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream())
-                );
-                String message;
-                while ((message = reader.readLine()) != null) {
-                    final String msg = message;
-                    SwingUtilities.invokeLater(() -> {
-                        // Check for username duplicate error message from server
-                        if (msg.contains("Username already taken") || msg.contains("duplicate") || msg.contains("already exists")) {
-                            JOptionPane.showMessageDialog(frame, "Username '" + username + "' is already taken. Please restart with a different name.", "Username Taken", JOptionPane.ERROR_MESSAGE);
-                            try {
-                                socket.close();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                            return;
+                DataInputStream input = in;
+                while (true) {
+                    InboundMessage message;
+                    try {
+                        message = readMessage(input);
+                    } catch (SocketTimeoutException e) {
+                        if (pingOutstanding) {
+                            throw e; // the server is gone; reconnect below
                         }
-                        
-                        // Check for system messages (join/leave notifications)
-                        if (msg.contains("has left the chat") || msg.contains("has joined the chat") || msg.contains("joined") || msg.contains("left")) {
-                            String cleanMsg = msg.replaceAll("\\[.*?\\]\\s*", "");
-                            appendMessage(cleanMsg, "system");
-                        } else if (msg.contains("Welcome") && !msg.contains("Enter your username")) {
-                            String cleanMsg = msg.replaceAll("\\[.*?\\]\\s*", "");
-                            appendMessage(cleanMsg, "system");
-                        } else {
-                            // Process normal messages
-                            if (msg.startsWith(username + ": ")) {
-                                appendMessage(msg, "self");
-                            } else if (msg.contains(": ")) {
-                                appendMessage(msg, "other");
-                            }
+                        pingOutstanding = true;
+                        outbox.ping();
+                        continue;
+                    }
+                    if (message == null) break;
+                    if (message.type == null) {
+                        String text = message.text;
+                        if (text.startsWith(JOINED_ROOM) && text.endsWith(" ***")) {
+                            room = text.substring(JOINED_ROOM.length(), text.length() - 4);
                         }
-                    });
+                        message = classify(text);
+                    }
+                    if (message != null) {
+                        queueInbound(message);
+                    }
                 }
             } catch (IOException e) {
-                SwingUtilities.invokeLater(() -> {
-                    statusLabel.setText("Offline");
-                    inputField.setEnabled(false);
-                    sendButton.setEnabled(false);
-                });
+                // Dropped; reconnect below
             }
-        });
+            closeSocket();
+            // Under the write lock, so the sender can't be halfway through a batch for this connection
+            synchronized (this) {
+                outbox.offline();
+            }
+            if (closing) return;
+            if (System.nanoTime() - connectedAt >= STABLE_CONNECTION_MILLIS * 1_000_000L) {
+                reconnectFailures = 0;
+            }
+            reconnectFailures++;
+            SwingUtilities.invokeLater(this::connectToServer);
+        }, "chat-reader");
         readThread.start();
     }
 
+    // Runs on the reading thread so the string checks and regexes stay off the EDT
+    private InboundMessage classify(String msg) {
+        // "/search" replies are several lines; keep them apart and keep the timestamps
+        if (msg.startsWith("Search results in #")) {
+            return new InboundMessage(msg.trim().replace("\n", "<br>"), "system");
+        }
+        // Check for system messages (join/leave notifications)
+        if (msg.contains("has left the chat") || msg.contains("has joined the chat") || msg.contains("joined") || msg.contains("left")) {
+            return new InboundMessage(BRACKETED.matcher(msg).replaceAll(""), "system");
+        } else if (msg.contains("Welcome") && !msg.contains("Enter your username")) {
+            return new InboundMessage(BRACKETED.matcher(msg).replaceAll(""), "system");
+        } else {
+            // Process normal messages
+            if (msg.startsWith(username + ": ")) {
+                return new InboundMessage(msg, "self");
+            } else if (msg.contains(": ")) {
+                // Remove any timestamp patterns like [Fri Nov 07 16:12:34 HKT 2025]
+                return new InboundMessage(BRACKETED.matcher(msg).replaceAll(""), "other");
+            }
+        }
+        return null;
+    }
+
+    private void queueInbound(InboundMessage message) {
+        inbound.add(message);
+        inboundCount.incrementAndGet();
+        if (inboundScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::scheduleInboundFrame);
+        }
+    }
+
+    // On the EDT: render now if a frame has passed since the last batch, otherwise at the next frame
+    private void scheduleInboundFrame() {
+        long wait = FRAME_MILLIS - (System.currentTimeMillis() - lastInboundFrame);
+        if (wait <= 0) {
+            applyInbound();
+        } else {
+            frameTimer.setInitialDelay((int) wait);
+            frameTimer.restart();
+        }
+    }
+
+    private void applyInbound() {
+        lastInboundFrame = System.currentTimeMillis();
+        inboundScheduled.set(false);
+
+        // Messages beyond what the view keeps would be evicted before anyone saw them
+        while (inboundCount.get() > MAX_RENDERED_MESSAGES) {
+            inbound.poll();
+            inboundCount.decrementAndGet();
+        }
+
+        long deadline = System.nanoTime() + FRAME_BUDGET_NANOS;
+        InboundMessage message;
+        boolean rendered = false;
+        while (System.nanoTime() < deadline && (message = inbound.poll()) != null) {
+            inboundCount.decrementAndGet();
+            insertMessage(message.text, message.type);
+            rendered = true;
+        }
+        if (rendered) {
+            chatArea.setCaretPosition(chatDocument.getLength());
+        }
+
+        // Out of budget: carry on next frame. Not directly, since this may be the timer's own
+        // action and a coalescing Timer restarted from inside it can drop its next firing
+        if (!inbound.isEmpty() && inboundScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::scheduleInboundFrame);
+        }
+    }
+
+    // Only queues the line and shows it as pending; the sender thread does the writing
     private void sendMessage() {
         String message = inputField.getText().trim();
         if (message.isEmpty()) return;
 
-        if (writer != null && socket != null && !socket.isClosed()) {
-            writer.println(username + ": " + message);
-            appendMessage(username + ": " + message, "self");
-        } else {
-            appendMessage(username + ": " + message + " (local)", "self");
+        // Commands such as "/join" go to the server as typed, so it can move us between rooms;
+        // everything else is a chat line under our name
+        if (message.equalsIgnoreCase("/exit")) {
+            closing = true;
         }
+        Outgoing outgoing = outbox.add(message.startsWith("/") ? message : username + ": " + message);
+        insertMessage(outgoing.text, "self", "send-" + outgoing.sequence);
+        chatArea.setCaretPosition(chatDocument.getLength());
 
         inputField.setText("");
         inputField.requestFocus();
     }
 
+    // Replaces "Pending" under one of our bubbles, if it is still on screen
+    private void showSendStatus(long sequence, String status) {
+        Element line = chatDocument.getElement("send-" + sequence);
+        if (line == null) return;
+        try {
+            chatDocument.setInnerHTML(line, status);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     private void appendMessage(String text, String type) {
+        insertMessage(text, type);
+        chatArea.setCaretPosition(chatDocument.getLength());
+    }
+
+    private void insertMessage(String text, String type) {
+        insertMessage(text, type, null);
+    }
+
+    // statusId names the line under a bubble of ours that shows whether it got to the server
+    private void insertMessage(String text, String type, String statusId) {
         try {
-            String time = LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
-            String currentHtml = chatArea.getText();
-            
-            int bodyStart = currentHtml.indexOf("<body");
-            bodyStart = currentHtml.indexOf(">", bodyStart) + 1;
-            int bodyEnd = currentHtml.lastIndexOf("</body>");
-            String existingContent = currentHtml.substring(bodyStart, bodyEnd);
+            String time = LocalTime.now().format(TIME_FORMAT);
 
             String messageHtml;
             switch (type) {
@@ -339,6 +1277,7 @@ public class ChatClient {
                                  "font-size: 14px; line-height: 1.4; box-shadow: 0 2px 4px rgba(0,0,0,0.1);'>" +
                                  selfMessage + "</span>" +
                                  "</div>" +
+                                 (statusId == null ? "" : "<div id='" + statusId + "' style='text-align: right; color: #999; font-size: 11px; margin-top: 3px;'>Pending</div>") +
                                  "</div>";
                     break;
                 case "other":
@@ -346,8 +1285,8 @@ public class ChatClient {
                     String displayText = text;
                     String usernameDisplay = "";
                     
-                    // Remove any timestamp patterns like [Fri Nov 07 16:12:34 HKT 2025]
-                    String cleanText = text.replaceAll("\\[.*?\\]\\s*", "");
+                    // Timestamps like [Fri Nov 07 16:12:34 HKT 2025] were already removed in classify()
+                    String cleanText = text;
                     
                     if (cleanText.contains(": ")) {
                         int colonIndex = cleanText.indexOf(": ");
@@ -390,6 +1329,9 @@ public class ChatClient {
                                      "</div>";
                     }
                     break;
+                case "attachment":
+                    messageHtml = attachmentHtml(text, time);
+                    break;
                 case "system":
                     // Only show specific system messages, filter out unwanted ones
                     if (!text.contains("Enter your username")) {
@@ -417,17 +1359,58 @@ public class ChatClient {
                                  "border-radius: 8px; border-left: 3px solid #ccc;'>" + text + "</div>";
             }
 
-            String newHtml = currentHtml.substring(0, bodyStart) +
-                            existingContent + messageHtml +
-                            currentHtml.substring(bodyEnd);
-
-            chatArea.setText(newHtml);
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
+            // Insert into the existing document instead of re-serializing and re-parsing it
+            chatDocument.insertBeforeEnd(chatBody, messageHtml);
+            renderedMessages++;
+            if (renderedMessages >= MAX_RENDERED_MESSAGES + EVICTION_BATCH) {
+                int evict = Math.min(renderedMessages - MAX_RENDERED_MESSAGES, chatBody.getElementCount() - 1);
+                int start = chatBody.getElement(0).getStartOffset();
+                int end = chatBody.getElement(evict - 1).getEndOffset();
+                chatDocument.remove(start, end - start);
+                renderedMessages -= evict;
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    // A bubble like a chat message with the file name, its size and a link that downloads it;
+    // text is "<file id>\n<size>\n<name>\n<uploader>" from a FILE frame
+    private String attachmentHtml(String text, String time) throws UnsupportedEncodingException {
+        String[] file = text.split("\n", 4);
+        boolean self = file[3].equals(username);
+        String align = self ? "right" : "left";
+        String name = file[2];
+        return "<div style='margin: 12px 0; padding: 0 10px;'>" +
+               "<div style='text-align: " + align + "; margin-bottom: 3px;'>" +
+               "<span style='font-size: 13px; color: #333; font-weight: bold; padding: 2px 0;'>" +
+               (self ? "You" : escapeHtml(file[3])) +
+               " <span style='color: #999; font-weight: normal; font-size: 11px;'>( " + time + " )</span>" +
+               "</span>" +
+               "</div>" +
+               "<div style='text-align: " + align + ";'>" +
+               "<span style='background-color: " + toHex(self ? WECHAT_SELF_BUBBLE : WECHAT_OTHER_BUBBLE) +
+               "; color: black; padding: 10px 15px; border-radius: 20px; " +
+               "max-width: 75%; display: inline-block; word-wrap: break-word; " +
+               "font-size: 14px; line-height: 1.4; border: 1px solid #e0e0e0;'>" +
+               "<b>" + escapeHtml(name) + "</b> <span style='color: #666; font-size: 12px;'>(" + file[1] + ")</span><br>" +
+               "<a href='download:" + file[0] + ":" + URLEncoder.encode(name, "UTF-8") + "'>Download</a>" +
+               "</span>" +
+               "</div>" +
+               "</div>";
+    }
+
+    private static String describeSize(long bytes) {
+        if (bytes < 1024) return bytes + " bytes";
+        if (bytes < 1024 * 1024) return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+        return String.format(Locale.ROOT, "%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    private static String escapeHtml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("'", "&#39;");
+    }
+
     private String toHex(Color color) {
         return String.format("#%02x%02x%02x", 
                            color.getRed(), 
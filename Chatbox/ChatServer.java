@@ -6,105 +6,335 @@ import java.util.concurrent.*;
 public class ChatServer {
     //Server code : private static final int PORT = xxxxx;
     private static Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    static final String DEFAULT_ROOM = "lobby";
+    // Room name -> members. Member sets are concurrent, so a broadcast can walk one while
+    // people join and leave; empty rooms other than the lobby are dropped.
+    private static final ConcurrentHashMap<String, Set<ClientHandler>> rooms = new ConcurrentHashMap<>();
+    static final MessageLog history = new MessageLog();
+    static final SearchIndex search = new SearchIndex(history);
+    static final Attachments attachments = new Attachments();
+    // Heartbeat and idle checks for every connection; 100 ms ticks, 512 per turn.
+    static final TimerWheel timers = new TimerWheel(100, 512, "chat-timers");
+    static final AuditLog audit = new AuditLog(AuditLog.ENABLED ? AuditLog.DIRECTORY : null);
+    static final ServerMetrics metrics = new ServerMetrics(clients, timers, audit);
+    static final Cluster cluster = new Cluster();
+    private static final int WRITER_THREADS = Integer.getInteger("chat.writer.threads", 256);
+    // Lower-cased username -> the connection holding it. Claimed when a user picks the
+    // name and released when that connection closes, so lookups never walk every client.
+    private static final ConcurrentHashMap<String, ClientHandler> usernames = new ConcurrentHashMap<>();
+    // Everyone online here or on another node, with how many sessions each has, and the
+    // connections that asked for "/users" and get every change after it as a delta. Both only
+    // change under presenceLock, so a watcher's list and the deltas that follow it line up.
+    private static final Object presenceLock = new Object();
+    private static final Map<String, Integer> online = new LinkedHashMap<>();
+    private static final Set<ClientHandler> presenceWatchers = new HashSet<>();
+    private static long presenceVersion;
+    private static UserList userList = new UserList(-1, null);
+    // User and client session -> the last SEND handled for it, kept for a while after the
+    // connection closes so a client that resends unacknowledged lines after reconnecting
+    // doesn't post them twice.
+    private static final long SEND_SESSION_NANOS = Long.getLong("chat.send.session.seconds", 600) * 1_000_000_000L;
+    private static final ConcurrentHashMap<String, SendSession> sendSessions = new ConcurrentHashMap<>();
+    // Who may use "/stats"; nobody when the property isn't set.
+    private static final Set<String> ADMINS = new HashSet<>(Arrays.asList(System.getProperty("chat.admins", "").split(",")));
 
     public static void main(String[] args) {
-        System.out.println("Chat Server starting on port " + PORT);
+        String mode = args.length > 0 ? args[0].toLowerCase() : "blocking";
+        System.out.println("Chat Server starting on port " + PORT + " (" + mode + " mode)");
+        metrics.start();
+        cluster.start();
+        if (mode.equals("nio")) {
+            try {
+                new NioChatServer(PORT, NioChatServer.DEFAULT_EVENT_LOOPS).run();
+            } catch (IOException e) {
+                System.err.println("Server error: " + e.getMessage());
+            }
+            return;
+        }
+        Executor handlerExecutor = handlerExecutor(mode);
+        Executor writerExecutor = writerExecutor(mode);
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
             while (true) {
                 Socket socket = serverSocket.accept();
-                ClientHandler handler = new ClientHandler(socket);
+                ClientHandler handler = new ClientHandler(socket, writerExecutor);
                 clients.add(handler);
-                new Thread(handler).start();
+                handlerExecutor.execute(handler);
             }
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
         }
     }
 
-    public static void broadcast(String message, ClientHandler sender) {
-        for (ClientHandler client : clients) {
+    /**
+     * Picks what runs each blocking ClientHandler: a platform thread per client, or a
+     * virtual thread per client in "virtual" mode. Virtual threads are looked up
+     * reflectively so the server still builds and runs on JDKs older than 21.
+     */
+    static Executor handlerExecutor(String mode) {
+        if (mode.equals("virtual")) {
+            Executor virtual = virtualThreads();
+            if (virtual != null) return virtual;
+            System.err.println("Virtual threads need Java 21 or newer, using platform threads");
+        }
+        return command -> new Thread(command).start();
+    }
+
+    /**
+     * Runs blocking-mode writes. A client only holds a writer while it has something queued,
+     * so with platform threads one pool of up to -Dchat.writer.threads (256) serves every
+     * client, and an idle server needs a thread per client rather than two. A client whose
+     * socket stops taking data keeps its writer until the write timeout drops it; once every
+     * writer is stuck that way, other writes wait in line. Virtual mode gives each write its
+     * own virtual thread instead.
+     */
+    static Executor writerExecutor(String mode) {
+        Executor virtual = mode.equals("virtual") ? virtualThreads() : null;
+        if (virtual != null) return virtual;
+        // Hands a write to an idle writer if there is one and starts another only if not, up to
+        // the limit; past it, writes queue. (A plain pool would start a thread per write until
+        // it reached its core size, and queue instead of growing beyond it.) One writer never
+        // times out, so a write queued just as every other writer retires still gets taken.
+        LinkedTransferQueue<Runnable> waiting = new LinkedTransferQueue<Runnable>() {
+            @Override
+            public boolean offer(Runnable command) {
+                return tryTransfer(command);
+            }
+        };
+        return new ThreadPoolExecutor(1, WRITER_THREADS, 30, TimeUnit.SECONDS, waiting, command -> {
+            Thread thread = new Thread(command, "chat-writer");
+            thread.setDaemon(true);
+            return thread;
+        }, (command, pool) -> waiting.put(command));
+    }
+
+    private static Executor virtualThreads() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static void addClient(ClientHandler client) {
+        clients.add(client);
+    }
+
+    public static long broadcast(String message, ClientHandler sender) {
+        return broadcastToRoom(sender.getRoom(), message, sender);
+    }
+
+    /**
+     * Queues the message for every member of the room but the sender. This only
+     * enqueues: each client's own writer does the socket I/O, so a stalled recipient
+     * can't hold up the sender or anyone after it. In cluster mode the message also goes to
+     * the same room on every other node. Returns the message's history id, 0 if it has none.
+     */
+    static long broadcastToRoom(String room, String message, ClientHandler sender) {
+        if (room == null) return 0;
+        long id = deliverToRoom(room, message, sender);
+        cluster.publishMessage(room, message);
+        return id;
+    }
+
+    /** Fans a message out to this node's members of the room only. */
+    static long deliverToRoom(String room, String message, ClientHandler sender) {
+        Set<ClientHandler> members = room == null ? null : rooms.get(room);
+        if (members == null) return 0;
+        long started = System.nanoTime();
+        long id = history.append(room, message);
+        OutboundMessage encoded = OutboundMessage.broadcast(id, message);
+        for (ClientHandler client : members) {
             if (client != sender) {
-                client.sendMessage(message);
+                client.send(encoded);
+            }
+        }
+        metrics.broadcastNanos.record(System.nanoTime() - started);
+        return id;
+    }
+
+    static boolean isAdmin(String username) {
+        return ADMINS.contains(username);
+    }
+
+    static void joinRoom(ClientHandler client, String room) {
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
             }
+            members.add(client);
+            return members;
+        });
+    }
+
+    static void leaveRoom(ClientHandler client, String room) {
+        if (room == null) return;
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(client);
+            return members.isEmpty() && !name.equals(DEFAULT_ROOM) ? null : members;
+        });
+    }
+
+    static String getRoomList() {
+        StringBuilder roomList = new StringBuilder("Rooms:\n");
+        for (Map.Entry<String, Set<ClientHandler>> room : rooms.entrySet()) {
+            roomList.append("- #").append(room.getKey())
+                    .append(" (").append(room.getValue().size()).append(")\n");
+        }
+        return roomList.toString();
+    }
+
+    private static volatile Timestamp lastTimestamp = new Timestamp(0, "");
+
+    /**
+     * Same text as new Date().toString(), but formatted at most once per second and
+     * shared by every message sent within it.
+     */
+    static String timestamp() {
+        long second = System.currentTimeMillis() / 1000;
+        Timestamp cached = lastTimestamp;
+        if (cached.second != second) {
+            cached = new Timestamp(second, new Date(second * 1000).toString());
+            lastTimestamp = cached;
+        }
+        return cached.text;
+    }
+
+    private static final class Timestamp {
+        final long second;
+        final String text;
+
+        Timestamp(long second, String text) {
+            this.second = second;
+            this.text = text;
         }
     }
 
     public static void removeClient(ClientHandler client, String username) {
         clients.remove(client);
+        synchronized (presenceLock) {
+            presenceWatchers.remove(client);
+        }
+        // Never picked a name, so it never joined a room or told anyone it was here
+        if (username == null) return;
+        if (usernames.remove(username.toLowerCase(), client)) {
+            userOffline(username);
+            cluster.left(username);
+        }
+        String room = client.getRoom();
+        leaveRoom(client, room);
         String leftMsg = "*** " + username + " has left the chat ***";
-        broadcast(leftMsg, null);
-        System.out.println(leftMsg);
+        broadcastToRoom(room, leftMsg, null);
+        audit.log(room, leftMsg);
     }
 
-    public static String getUserList() {
-        StringBuilder userList = new StringBuilder("Online users:\n");
-        for (ClientHandler c : clients) {
-            userList.append("- ").append(c.getUsername()).append("\n");
+    /** Hands a joining connection its session's SEND progress, or a fresh one. */
+    static SendSession resumeSendSession(String key) {
+        SendSession session = sendSessions.remove(key);
+        if (session == null) return new SendSession(key);
+        TimerWheel.Timeout expiry = session.expiry;
+        if (expiry != null) {
+            expiry.cancel();
         }
-        return userList.toString();
+        return session;
     }
-}
 
-class ClientHandler implements Runnable {
-    private Socket socket;
-    private BufferedReader reader;
-    private PrintWriter writer;
-    private String username;
+    /** Keeps a closed connection's session around until it reconnects or expires. */
+    static void parkSendSession(SendSession session) {
+        sendSessions.put(session.key, session);
+        session.expiry = timers.schedule(() -> sendSessions.remove(session.key, session), SEND_SESSION_NANOS);
+    }
 
-    public ClientHandler(Socket socket) {
-        this.socket = socket;
+    /** Takes the username for this client; false if someone else already has it. */
+    static boolean claimUsername(String username, ClientHandler client) {
+        if (usernames.putIfAbsent(username.toLowerCase(), client) != null) return false;
+        userOnline(username);
+        return true;
     }
 
-    public void run() {
-        try {
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream(), true);
+    static ClientHandler findUser(String username) {
+        return usernames.get(username.toLowerCase());
+    }
 
-            writer.println("Enter your username:");
-            username = reader.readLine();
-            if (username == null || username.trim().isEmpty()) {
-                username = "User" + (int)(Math.random()*1000);
+    /** A user came online, here or on another node; remote users are named "name (@node)". */
+    static void userOnline(String name) {
+        synchronized (presenceLock) {
+            if (online.merge(name, 1, Integer::sum) == 1) {
+                presenceDelta("*** " + name + " is online ***");
             }
+        }
+    }
 
-            writer.println("Welcome, " + username + "!");
-            String joinMsg = "*** " + username + " has joined the chat! ***";
-            System.out.println(joinMsg);
-            ChatServer.broadcast(joinMsg, this);
-
-            String msg;
-            while ((msg = reader.readLine()) != null) {
-                if (msg.equalsIgnoreCase("/exit")) {
-                    break;
-                } else if (msg.equalsIgnoreCase("/users")) {
-                    writer.println(ChatServer.getUserList());
-                } else if (msg.equalsIgnoreCase("/help")) {
-                    writer.println("Commands:\n/users - list users\n/help - this message\n/exit - leave chat");
-                } else {
-                    String formatted = "[" + new Date() + "] " + username + ": " + msg;
-                    System.out.println(formatted);
-                    ChatServer.broadcast(formatted, this);
-                }
+    static void userOffline(String name) {
+        synchronized (presenceLock) {
+            Integer sessions = online.get(name);
+            if (sessions == null) return;
+            if (sessions > 1) {
+                online.put(name, sessions - 1);
+            } else {
+                online.remove(name);
+                presenceDelta("*** " + name + " is offline ***");
             }
-        } catch (IOException e) {
-            System.err.println("Connection error with user " + username);
-        } finally {
-            close();
         }
     }
 
-    public void sendMessage(String msg) {
-        writer.println(msg);
+    // Encoded once and queued for every watcher, like a broadcast.
+    private static void presenceDelta(String text) {
+        presenceVersion++;
+        if (presenceWatchers.isEmpty()) return;
+        OutboundMessage delta = OutboundMessage.of(text);
+        for (ClientHandler watcher : presenceWatchers) {
+            watcher.send(delta);
+        }
     }
 
-    public String getUsername() {
-        return username;
+    /** Sends the client everyone online now, then each user coming or going after that. */
+    static void watchPresence(ClientHandler client) {
+        synchronized (presenceLock) {
+            client.send(userListMessage());
+            // Checked under the lock that removeClient takes to drop a watcher.
+            if (!client.isClosed()) {
+                presenceWatchers.add(client);
+            }
+        }
     }
 
-    private void close() {
-        try {
-            if (socket != null) socket.close();
-        } catch (IOException ignored) {}
-        ChatServer.removeClient(this, username);
+    public static String getUserList() {
+        return userListMessage().text();
+    }
+
+    // Shared by every "/users" until presence changes, so a burst of requests costs one
+    // build and one encoding; watchers then only get the changes.
+    static OutboundMessage userListMessage() {
+        synchronized (presenceLock) {
+            if (userList.version != presenceVersion) {
+                StringBuilder text = new StringBuilder("Online users:\n");
+                for (String name : online.keySet()) {
+                    text.append("- ").append(name).append("\n");
+                }
+                userList = new UserList(presenceVersion, OutboundMessage.of(text.toString()));
+            }
+            return userList.message;
+        }
     }
-}
 
+    /** SEND progress of one client session; used by one connection at a time. */
+    static final class SendSession {
+        final String key;
+        long lastSequence;
+        volatile TimerWheel.Timeout expiry;
+
+        SendSession(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final class UserList {
+        final long version;
+        final OutboundMessage message;
+
+        UserList(long version, OutboundMessage message) {
+            this.version = version;
+            this.message = message;
+        }
+    }
+}
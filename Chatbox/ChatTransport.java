@@ -0,0 +1,19 @@
+/**
+ * Outbound side of a client connection that is not driven by its own blocking thread.
+ * Implementations must be safe to call from any thread and must never block the caller.
+ */
+interface ChatTransport {
+    /** Called after a message lands in the handler's outbound queue. */
+    void flushOutbound();
+
+    /**
+     * Stops reading from the socket; called while the handler is being fed, once it has
+     * handed work elsewhere that has to finish before the next frame is handled.
+     */
+    void pauseReading();
+
+    /** Reads again, starting with whatever was read before the pause but not handled yet. */
+    void resumeReading();
+
+    void close();
+}
@@ -0,0 +1,915 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class ClientHandler implements Runnable {
+    private static final int MAX_WRITE_BATCH = 64;
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_ROOM_NAME = 32;
+    private static final int MAX_USERNAME = 32;
+    private static final int DEFAULT_HISTORY = 50;
+    private static final int MAX_REPLAY_BATCH = 128 * 1024;
+    // Dead connections are found by checks on ChatServer.timers rather than by blocking reads.
+    // A framed client that sends nothing for HEARTBEAT gets a PING and is dropped if nothing
+    // arrives within HEARTBEAT_TIMEOUT after it. Text clients can't answer pings, so they are
+    // only dropped after IDLE_TIMEOUT of silence, which is off unless set. Any connection whose
+    // writes make no progress for WRITE_TIMEOUT, or that hasn't picked a username within
+    // LOGIN_TIMEOUT, is dropped too. Zero turns a check off.
+    static final long HEARTBEAT_SECONDS = Long.getLong("chat.heartbeat.seconds", 30);
+    private static final long HEARTBEAT_NANOS = HEARTBEAT_SECONDS * 1_000_000_000L;
+    private static final long HEARTBEAT_TIMEOUT_NANOS = Long.getLong("chat.heartbeat.timeout.seconds", 10) * 1_000_000_000L;
+    private static final long IDLE_TIMEOUT_NANOS = Long.getLong("chat.idle.seconds", 0) * 1_000_000_000L;
+    private static final long WRITE_TIMEOUT_NANOS = Long.getLong("chat.write.timeout.seconds", 30) * 1_000_000_000L;
+    private static final long LOGIN_TIMEOUT_NANOS = Long.getLong("chat.login.timeout.seconds", 300) * 1_000_000_000L;
+    private static final long MAX_CHECK_INTERVAL_NANOS = 30_000_000_000L;
+    // File transfers (framed clients only) are capped at TRANSFER_RATE bytes a second each
+    // way per connection. Uploads are paced by holding back UPLOAD_ACKs: the client may only
+    // be UPLOAD_WINDOW bytes ahead of what was acknowledged.
+    private static final long TRANSFER_RATE = Long.getLong("chat.transfer.bytes.per.second", 2L << 20);
+    private static final int UPLOAD_WINDOW = 4 * Attachments.CHUNK_SIZE;
+    private static final int MAX_DOWNLOADS = 4;
+    // Each upload holds a file open until it finishes or the connection closes.
+    private static final int MAX_UPLOADS = 4;
+
+    private Socket socket;
+    private Executor writerExecutor;
+    private ChatTransport transport;
+    private volatile OutputStream out;
+    // Blocking mode: set while a write task for this client is queued or running.
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final AtomicBoolean pacing = new AtomicBoolean();
+    private final OutboundQueue outbound =
+            new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY, OutboundQueue.DEFAULT_POLICY);
+    private volatile String username;
+    private volatile String room;
+    private volatile boolean joined;
+    // OutboundMessage.LINE until "/hello" switches the connection to frames.
+    private volatile int format = OutboundMessage.LINE;
+    // Set by "/hello" options: what to replay once the username is in.
+    private int replayLast;
+    private long replayAfter = -1;
+    private String resumeRoom = ChatServer.DEFAULT_ROOM;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final long connectedAt = System.nanoTime();
+    private final FloodControl flood = new FloodControl();
+    // Times from System.nanoTime(); 0 means never or not now.
+    private volatile long lastReadAt = connectedAt;
+    private volatile long writeBlockedSince;
+    private long pingSentAt; // only touched by the idle check
+    private volatile TimerWheel.Timeout idleCheck;
+    private final TokenBucket uploadRate = new TokenBucket(TRANSFER_RATE, UPLOAD_WINDOW);
+    private final TokenBucket downloadRate = new TokenBucket(TRANSFER_RATE, UPLOAD_WINDOW);
+    private final Map<Long, Attachments.Upload> uploads = new ConcurrentHashMap<>();
+    // Uploads the server gave up on part way -> bytes of chunks the client may still have had
+    // in flight for them, which are dropped rather than taken as a broken client.
+    private final Map<Long, Long> abandoned = new ConcurrentHashMap<>();
+    // Set while upload I/O runs on the attachments executor. Nothing more is read until it is
+    // done, so frames are still handled one at a time and in order, and a client can't line
+    // up more disk work than one frame's worth.
+    private volatile boolean readingPaused;
+    private final Object readGate = new Object();
+    // Served one chunk at a time in turn, whenever no messages are waiting.
+    private final Queue<Attachments.Download> downloads = new ConcurrentLinkedQueue<>();
+    // From "/hello ... session=<hex>"; SEND frames are deduplicated per user and session.
+    private String sessionId;
+    private volatile ChatServer.SendSession sendSession;
+    // History id of the last chat line this connection broadcast, for acknowledging a SEND.
+    private long lastBroadcastId;
+
+    public ClientHandler(Socket socket, Executor writerExecutor) {
+        this.socket = socket;
+        this.writerExecutor = writerExecutor;
+    }
+
+    // Used by the NIO engine: the transport feeds an InboundDecoder and drains outbound().
+    ClientHandler(ChatTransport transport) {
+        this.transport = transport;
+    }
+
+    public void run() {
+        try {
+            InputStream in = socket.getInputStream();
+            out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+
+            start();
+            InboundDecoder decoder = new InboundDecoder(this);
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            ByteBuffer view = ByteBuffer.wrap(buffer);
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                ChatServer.metrics.bytesIn.add(n);
+                view.clear();
+                view.limit(n);
+                if (!feed(decoder, view)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (!closed.get()) {
+                System.err.println("Connection error with user " + username);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    // Blocking mode: hands one read to the decoder, waiting out any upload I/O it starts.
+    private boolean feed(InboundDecoder decoder, ByteBuffer view) throws InterruptedIOException {
+        while (true) {
+            synchronized (readGate) {
+                while (readingPaused && !closed.get()) {
+                    try {
+                        readGate.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            if (!decoder.feed(view)) return false;
+            if (!view.hasRemaining()) return true;
+        }
+    }
+
+    boolean readingPaused() {
+        return readingPaused;
+    }
+
+    // Runs attachment I/O on the attachments executor with reading paused until it is done.
+    private void onDisk(Runnable task) {
+        readingPaused = true;
+        if (transport != null) {
+            transport.pauseReading();
+        }
+        ChatServer.attachments.run(() -> {
+            try {
+                task.run();
+            } finally {
+                resumeReading();
+            }
+        });
+    }
+
+    private void resumeReading() {
+        synchronized (readGate) {
+            readingPaused = false;
+            readGate.notifyAll();
+        }
+        if (transport != null) {
+            transport.resumeReading();
+        }
+    }
+
+    void start() {
+        send(OutboundMessage.handshake("Enter your username:"));
+        idleCheck = ChatServer.timers.schedule(this::checkIdle, nextIdleCheck(connectedAt) - connectedAt);
+    }
+
+    /** Called for every read from the socket, whole message or not. */
+    void markRead() {
+        lastReadAt = System.nanoTime();
+    }
+
+    /**
+     * Called by the writer when the socket won't take more. The write timeout runs from the
+     * first call, or from the latest one that made progress.
+     */
+    void writeBlocked(boolean progressed) {
+        if (progressed || writeBlockedSince == 0) {
+            writeBlockedSince = System.nanoTime();
+        }
+    }
+
+    void writeUnblocked() {
+        if (writeBlockedSince != 0) {
+            writeBlockedSince = 0;
+        }
+    }
+
+    // Runs on the timer wheel's thread, so it only compares timestamps and queues a PING.
+    private void checkIdle() {
+        if (closed.get()) return;
+        long now = System.nanoTime();
+        long lastRead = lastReadAt;
+        long blockedSince = writeBlockedSince;
+        String reason = null;
+        long lastSignOfLife = lastRead;
+        if (WRITE_TIMEOUT_NANOS > 0 && blockedSince != 0 && now - blockedSince >= WRITE_TIMEOUT_NANOS) {
+            reason = "not reading";
+            lastSignOfLife = blockedSince;
+        } else if (pingOutstanding(lastRead) && now - pingSentAt >= HEARTBEAT_TIMEOUT_NANOS) {
+            reason = "no answer to ping";
+        } else if (!joined && LOGIN_TIMEOUT_NANOS > 0 && now - connectedAt >= LOGIN_TIMEOUT_NANOS) {
+            reason = "no username";
+        } else if (IDLE_TIMEOUT_NANOS > 0 && !isFramed() && now - lastRead >= IDLE_TIMEOUT_NANOS) {
+            reason = "idle";
+        }
+        if (reason != null) {
+            System.err.println("Dropping connection of user " + username + ": " + reason);
+            ChatServer.metrics.reaped.increment();
+            ChatServer.metrics.deadPeerNanos.record(now - lastSignOfLife);
+            close();
+            return;
+        }
+        if (joined && HEARTBEAT_NANOS > 0 && isFramed() && !pingOutstanding(lastRead) && now - lastRead >= HEARTBEAT_NANOS) {
+            pingSentAt = now;
+            send(OutboundMessage.PING);
+        }
+        idleCheck = ChatServer.timers.schedule(this::checkIdle, nextIdleCheck(now) - now);
+    }
+
+    private boolean pingOutstanding(long lastRead) {
+        return pingSentAt != 0 && pingSentAt - lastRead > 0;
+    }
+
+    // The earliest time one of the checks could fire, given what is known now.
+    private long nextIdleCheck(long now) {
+        long next = now + MAX_CHECK_INTERVAL_NANOS;
+        long lastRead = lastReadAt;
+        if (pingOutstanding(lastRead)) {
+            next = Math.min(next, pingSentAt + HEARTBEAT_TIMEOUT_NANOS);
+        } else if (HEARTBEAT_NANOS > 0) {
+            next = Math.min(next, lastRead + HEARTBEAT_NANOS);
+        }
+        if (!joined && LOGIN_TIMEOUT_NANOS > 0) {
+            next = Math.min(next, connectedAt + LOGIN_TIMEOUT_NANOS);
+        }
+        if (IDLE_TIMEOUT_NANOS > 0) {
+            next = Math.min(next, lastRead + IDLE_TIMEOUT_NANOS);
+        }
+        long blockedSince = writeBlockedSince;
+        if (blockedSince != 0 && WRITE_TIMEOUT_NANOS > 0) {
+            next = Math.min(next, blockedSince + WRITE_TIMEOUT_NANOS);
+        }
+        return next;
+    }
+
+    boolean isFramed() {
+        return format != OutboundMessage.LINE;
+    }
+
+    int format() {
+        return format;
+    }
+
+    /**
+     * Charges one incoming line or frame against the flood limits before it is handled and
+     * tells the client when it crosses into throttling or muting. Returns a FloodControl
+     * verdict; on DISCONNECT the caller stops reading and the connection closes.
+     */
+    int admit(int size) {
+        int verdict = flood.check(size);
+        if (verdict == FloodControl.ACCEPT) return verdict;
+        ChatServer.metrics.throttled.increment();
+        if (size > FloodControl.MAX_LINE_LENGTH && (verdict == FloodControl.THROTTLE || verdict == FloodControl.DROP)) {
+            sendMessage("*** Message too long, limit is " + FloodControl.MAX_LINE_LENGTH + " bytes ***");
+        } else if (verdict == FloodControl.THROTTLE) {
+            sendMessage("*** Slow down, your messages are being dropped ***");
+        } else if (verdict == FloodControl.MUTE) {
+            sendMessage("*** You have been muted for flooding ***");
+        } else if (verdict == FloodControl.BUSY) {
+            sendMessage("*** Server busy, message not sent ***");
+        } else if (verdict == FloodControl.DISCONNECT) {
+            System.err.println("Disconnecting user " + username + " for flooding");
+        }
+        return verdict;
+    }
+
+    /**
+     * Handles one binary frame. TEXT frames carry exactly what a text-mode line would;
+     * frame types this server doesn't know are ignored.
+     */
+    boolean handleFrame(byte type, byte[] payload) {
+        if (type == Frame.TEXT) {
+            return handleLine(new String(payload, StandardCharsets.UTF_8));
+        } else if (type == Frame.PING) {
+            send(OutboundMessage.PONG);
+        } else if (type == Frame.UPLOAD) {
+            return beginUpload(ByteBuffer.wrap(payload));
+        } else if (type == Frame.CHUNK) {
+            return receiveChunk(ByteBuffer.wrap(payload));
+        } else if (type == Frame.SEND) {
+            return handleSend(ByteBuffer.wrap(payload));
+        }
+        return true;
+    }
+
+    /** Answers a frame flood control turned away, for frame types that expect an answer. */
+    void refuseFrame(byte type, byte[] payload) {
+        if (type == Frame.SEND && payload.length >= 8) {
+            sendSendAck(ByteBuffer.wrap(payload).getLong(), -1);
+        }
+    }
+
+    // A chat line the client keeps until it is acknowledged, and sends again after a reconnect
+    // if the acknowledgement never came; the session's sequence catches the ones already handled.
+    private boolean handleSend(ByteBuffer payload) {
+        if (!joined || sendSession == null || payload.remaining() < 8) return false;
+        long sequence = payload.getLong();
+        if (sequence <= sendSession.lastSequence) {
+            sendSendAck(sequence, 0);
+            return true;
+        }
+        sendSession.lastSequence = sequence;
+        lastBroadcastId = 0;
+        boolean keepGoing = handleLine(StandardCharsets.UTF_8.decode(payload).toString());
+        sendSendAck(sequence, lastBroadcastId);
+        return keepGoing;
+    }
+
+    private void sendSendAck(long sequence, long id) {
+        send(OutboundMessage.control(Frame.SEND_ACK, ByteBuffer.allocate(16).putLong(sequence).putLong(id).array()));
+    }
+
+    private boolean beginUpload(ByteBuffer payload) {
+        if (!joined || payload.remaining() < 16) return false;
+        long uploadId = payload.getLong();
+        long size = payload.getLong();
+        String name = StandardCharsets.UTF_8.decode(payload).toString();
+        if (!uploads.containsKey(uploadId) && uploads.size() >= MAX_UPLOADS) {
+            sendMessage("*** Could not upload " + name + ": too many uploads at once, wait for one to finish ***");
+            sendUploadAck(uploadId, 0, -1);
+            return true;
+        }
+        onDisk(() -> beginUpload(uploadId, size, name));
+        return true;
+    }
+
+    private void beginUpload(long uploadId, long size, String name) {
+        Attachments.Upload upload;
+        try {
+            upload = ChatServer.attachments.begin(username, uploadId, size, name);
+        } catch (IOException e) {
+            sendMessage("*** Could not upload " + name + ": " + e.getMessage() + " ***");
+            sendUploadAck(uploadId, 0, -1);
+            return;
+        }
+        Attachments.Upload previous = uploads.put(uploadId, upload);
+        if (previous != null) {
+            previous.close();
+        }
+        if (closed.get()) {
+            closeTransfers();
+            return;
+        }
+        if (upload.stored() == size) {
+            finishUpload(upload);
+        } else {
+            upload.limit = Math.min(size, upload.stored() + UPLOAD_WINDOW);
+            sendUploadAck(uploadId, upload.stored(), upload.limit);
+        }
+    }
+
+    // Chunks have to arrive in order and within the window of an upload in progress; anything
+    // else is a broken client. Flood control doesn't count chunks, so this is what keeps them
+    // to what an UPLOAD_ACK allowed.
+    private boolean receiveChunk(ByteBuffer payload) {
+        if (payload.remaining() < 16) return false;
+        long uploadId = payload.getLong();
+        long offset = payload.getLong();
+        int length = payload.remaining();
+        Attachments.Upload upload = uploads.get(uploadId);
+        if (upload == null) {
+            Long inFlight = abandoned.get(uploadId);
+            if (inFlight == null || length > inFlight) {
+                System.err.println("Chunk for no upload from user " + username);
+                return false;
+            }
+            if (length == inFlight) {
+                abandoned.remove(uploadId);
+            } else {
+                abandoned.put(uploadId, inFlight - length);
+            }
+            return true;
+        }
+        if (offset != upload.stored() || offset + length > upload.limit) {
+            System.err.println("Out of order chunk from user " + username);
+            return false;
+        }
+        onDisk(() -> storeChunk(upload, payload));
+        return true;
+    }
+
+    private void storeChunk(Attachments.Upload upload, ByteBuffer payload) {
+        int length = payload.remaining();
+        long end = upload.stored() + length;
+        try {
+            upload.write(payload);
+        } catch (IOException e) {
+            System.err.println("Could not store upload from user " + username + ": " + e.getMessage());
+            sendMessage("*** Could not upload " + upload.name + ": the server could not store it ***");
+            uploads.remove(upload.id);
+            upload.close();
+            if (upload.limit > end) {
+                abandoned.put(upload.id, upload.limit - end);
+            }
+            sendUploadAck(upload.id, upload.stored(), -1);
+            return;
+        }
+        if (upload.stored() == upload.size) {
+            finishUpload(upload);
+            return;
+        }
+        long stored = upload.stored();
+        long limit = Math.min(upload.size, stored + UPLOAD_WINDOW);
+        upload.limit = limit;
+        long delay = uploadRate.reserve(length, System.nanoTime());
+        if (delay == 0) {
+            sendUploadAck(upload.id, stored, limit);
+        } else {
+            ChatServer.timers.schedule(() -> sendUploadAck(upload.id, stored, limit), delay);
+        }
+    }
+
+    // The file is announced to the whole room, uploader included, like any other message, so it
+    // is in the history and the uploader's client shows it the same way everyone else's does.
+    // Framed clients get the announcement as a FILE frame; text clients and the audit log get
+    // the line.
+    private void finishUpload(Attachments.Upload upload) {
+        uploads.remove(upload.id);
+        Attachments.Stored file;
+        try {
+            file = ChatServer.attachments.finish(upload, username);
+        } catch (IOException e) {
+            System.err.println("Could not store upload from user " + username + ": " + e.getMessage());
+            sendMessage("*** Could not upload " + upload.name + ": the server could not store it ***");
+            sendUploadAck(upload.id, 0, -1);
+            return;
+        }
+        sendUploadAck(upload.id, file.size, file.size);
+        String announcement = Attachments.announcement(file, username);
+        ChatServer.audit.log(room, Attachments.shownText(announcement));
+        ChatServer.broadcastToRoom(room, announcement, null);
+    }
+
+    private void sendUploadAck(long uploadId, long stored, long limit) {
+        send(OutboundMessage.control(Frame.UPLOAD_ACK,
+                ByteBuffer.allocate(24).putLong(uploadId).putLong(stored).putLong(limit).array()));
+    }
+
+    /**
+     * Handles one line from the client. The first line is the username, the rest are
+     * commands or chat messages. Returns false when the client asked to leave.
+     */
+    boolean handleLine(String msg) {
+        ChatServer.metrics.messagesIn.increment();
+        if (!joined && !isFramed() && msg.startsWith("/hello ")) {
+            return negotiateFraming(msg.substring(7).trim());
+        }
+        if (!joined) {
+            String name = msg.trim();
+            if (name.isEmpty()) {
+                name = claimGuestName();
+            } else if (!isUsername(name)) {
+                sendMessage("Invalid username, use 1-" + MAX_USERNAME + " letters, digits, '.', '-' or '_'. Enter another:");
+                return true;
+            } else if (!ChatServer.claimUsername(name, this)) {
+                sendMessage("Username already taken, enter another:");
+                return true;
+            }
+            joined = true;
+            username = name;
+            if (sessionId != null) {
+                sendSession = ChatServer.resumeSendSession(username.toLowerCase() + "/" + sessionId);
+            }
+
+            sendMessage("Welcome, " + username + "!");
+            switchRoom(resumeRoom);
+            ChatServer.metrics.handshakeNanos.record(System.nanoTime() - connectedAt);
+            ChatServer.cluster.joined(username);
+            if (replayAfter >= 0) {
+                replaySince(replayAfter);
+            } else if (replayLast > 0) {
+                replayRecent(replayLast);
+            }
+            String joinMsg = "*** " + username + " has joined the chat! ***";
+            ChatServer.audit.log(room, joinMsg);
+            ChatServer.broadcast(joinMsg, this);
+            return true;
+        }
+
+        if (msg.equalsIgnoreCase("/exit")) {
+            return false;
+        } else if (msg.equalsIgnoreCase("/users")) {
+            ChatServer.watchPresence(this);
+        } else if (msg.equalsIgnoreCase("/rooms")) {
+            sendMessage(ChatServer.getRoomList());
+        } else if (msg.toLowerCase().startsWith("/msg ")) {
+            directMessage(msg.substring(5).trim());
+        } else if (msg.toLowerCase().startsWith("/join ")) {
+            changeRoom(msg.substring(6).trim().toLowerCase());
+        } else if (msg.equalsIgnoreCase("/leave")) {
+            changeRoom(ChatServer.DEFAULT_ROOM);
+        } else if (msg.equalsIgnoreCase("/history") || msg.toLowerCase().startsWith("/history ")) {
+            history(msg.substring(8).trim());
+        } else if (msg.equalsIgnoreCase("/search") || msg.toLowerCase().startsWith("/search ")) {
+            search(msg.substring(7).trim());
+        } else if (msg.toLowerCase().startsWith("/download ")) {
+            download(msg.substring(10).trim());
+        } else if (msg.equalsIgnoreCase("/stats")) {
+            sendMessage(ChatServer.isAdmin(username) ? "Server stats:\n" + ChatServer.metrics.getSummary()
+                    : "Only server admins can use /stats");
+        } else if (msg.equalsIgnoreCase("/help")) {
+            sendMessage("Commands:\n/users - list users, then who comes and goes\n/msg <user> <text> - private message\n/rooms - list rooms\n/join <room> - switch to a room\n"
+                    + "/leave - go back to #" + ChatServer.DEFAULT_ROOM + "\n/history [n] - last n messages in this room\n"
+                    + "/history since <id> - messages after the given id\n"
+                    + "/search <words> [from:user] [since:7d] [page:n] - find messages in this room\n"
+                    + "/download <id> [offset] - fetch a shared file\n"
+                    + (ChatServer.isAdmin(username) ? "/stats - server metrics\n" : "") + "/help - this message\n/exit - leave chat");
+        } else {
+            String formatted = "[" + ChatServer.timestamp() + "] " + username + ": " + msg;
+            ChatServer.audit.log(room, formatted);
+            lastBroadcastId = ChatServer.broadcast(formatted, this);
+        }
+        return true;
+    }
+
+    private String claimGuestName() {
+        String name;
+        int range = 1000;
+        while (!ChatServer.claimUsername(name = "User" + (int) (Math.random() * range), this)) {
+            range *= 2;
+        }
+        return name;
+    }
+
+    // Straight to the recipient's queue; only the sender and recipient see it, the sender as
+    // confirmation that it went out.
+    private void directMessage(String args) {
+        int space = args.indexOf(' ');
+        if (space < 0) {
+            sendMessage("Usage: /msg <user> <text>");
+            return;
+        }
+        ClientHandler target = ChatServer.findUser(args.substring(0, space));
+        if (target == null) {
+            sendMessage("No user named " + args.substring(0, space) + " is online here");
+            return;
+        }
+        String text = args.substring(space + 1).trim();
+        target.sendMessage("[" + ChatServer.timestamp() + "] " + username + " (private): " + text);
+        sendMessage("[" + ChatServer.timestamp() + "] " + username + " (private to " + target.getUsername() + "): " + text);
+    }
+
+    // "/hello <highest version the client speaks> [history=<n>|since=<id>] [room=<room>] [deflate]"
+    // is answered with the version both sides will use, plus "deflate" if large frames to the
+    // client will be compressed and "heartbeat=<seconds>" if the server pings quiet clients;
+    // everything after the reply is framed in both directions. A reconnecting client names the
+    // room it was in, so it goes back there instead of the lobby and the replay comes from it.
+    private boolean negotiateFraming(String requested) {
+        String[] options = requested.split(" ");
+        int version;
+        boolean deflate = false;
+        try {
+            version = Math.min(Integer.parseInt(options[0]), Frame.PROTOCOL_VERSION);
+            for (int i = 1; i < options.length; i++) {
+                if (options[i].startsWith("history=")) {
+                    replayLast = Math.min(Integer.parseInt(options[i].substring(8)), MessageLog.MAX_REPLAY);
+                } else if (options[i].startsWith("since=")) {
+                    replayAfter = Long.parseLong(options[i].substring(6));
+                } else if (options[i].equals("deflate")) {
+                    deflate = true;
+                } else if (options[i].startsWith("session=")) {
+                    sessionId = options[i].substring(8);
+                } else if (options[i].startsWith("room=") && isRoomName(options[i].substring(5).toLowerCase())) {
+                    resumeRoom = options[i].substring(5).toLowerCase();
+                }
+            }
+        } catch (NumberFormatException e) {
+            version = 0;
+        }
+        if (version < 1) {
+            send(OutboundMessage.handshake("/hello-fail"));
+            return false;
+        }
+        format = deflate ? OutboundMessage.DEFLATE : OutboundMessage.FRAME;
+        send(OutboundMessage.handshake("/hello-ok " + version + (deflate ? " deflate" : "")
+                + (HEARTBEAT_SECONDS > 0 ? " heartbeat=" + HEARTBEAT_SECONDS : "") + " send"));
+        return true;
+    }
+
+    private void history(String args) {
+        try {
+            if (args.toLowerCase().startsWith("since ")) {
+                replaySince(Long.parseLong(args.substring(6).trim()));
+            } else {
+                replayRecent(args.isEmpty() ? DEFAULT_HISTORY : Math.min(Integer.parseInt(args), MessageLog.MAX_REPLAY));
+            }
+        } catch (NumberFormatException e) {
+            sendMessage("Usage: /history [n] or /history since <id>");
+        }
+    }
+
+    // Replays read the mapped log on the history executor and only queue the results here.
+    private void replayRecent(int count) {
+        String replayRoom = room;
+        ChatServer.history.replay(() -> sendAll(ChatServer.history.recent(replayRoom, count)));
+    }
+
+    private void replaySince(long afterId) {
+        String replayRoom = room;
+        ChatServer.history.replay(() -> sendAll(ChatServer.history.since(replayRoom, afterId, MessageLog.MAX_REPLAY)));
+    }
+
+    // Looked up on the history executor like a replay; only the matching messages are read
+    // from the log.
+    private void search(String args) {
+        if (!ChatServer.search.isEnabled()) {
+            sendMessage("Search needs the message history, which is turned off");
+            return;
+        }
+        SearchIndex.Query query;
+        try {
+            query = SearchIndex.Query.parse(args, System.currentTimeMillis());
+        } catch (IllegalArgumentException e) {
+            sendMessage(e.getMessage());
+            return;
+        }
+        String searchRoom = room;
+        ChatServer.history.replay(() -> {
+            long started = System.nanoTime();
+            SearchIndex.Result result = ChatServer.search.search(searchRoom, query);
+            StringBuilder reply = new StringBuilder("Search results in #" + searchRoom + ", page " + query.page + ":\n");
+            int shown = 0;
+            for (long id : result.ids) {
+                MessageLog.Entry entry = ChatServer.history.get(id);
+                if (entry != null) {
+                    reply.append(Attachments.shownText(entry.text)).append('\n');
+                    shown++;
+                }
+            }
+            ChatServer.metrics.searchNanos.record(System.nanoTime() - started);
+            if (shown == 0) {
+                reply.append("No matching messages\n");
+            }
+            if (result.more) {
+                reply.append("More with page:").append(query.page + 1).append('\n');
+            } else if (result.truncated) {
+                reply.append("Stopped looking early; add words, from: or since: to narrow the search\n");
+            }
+            sendMessage(reply.toString());
+        });
+    }
+
+    // Queued in batches of up to MAX_REPLAY_BATCH characters, so a deflating client gets each
+    // compressed as a whole while the compressed frame stays well under the frame limit.
+    private void sendAll(List<MessageLog.Entry> entries) {
+        List<OutboundMessage> messages = new ArrayList<>();
+        int characters = 0;
+        for (MessageLog.Entry entry : entries) {
+            messages.add(OutboundMessage.logged(entry.id, entry.text));
+            characters += entry.text.length();
+            if (characters >= MAX_REPLAY_BATCH) {
+                send(OutboundMessage.batch(messages));
+                messages.clear();
+                characters = 0;
+            }
+        }
+        if (!messages.isEmpty()) {
+            send(OutboundMessage.batch(messages));
+        }
+    }
+
+    // "/download <file id> [offset]": the file goes out after whatever is already queued, in
+    // chunks that give way to chat messages. Finding and opening it happen on the attachments
+    // executor, like upload writes.
+    private void download(String args) {
+        if (!isFramed()) {
+            sendMessage("Downloads need a client that speaks the framed protocol");
+            return;
+        }
+        String[] parts = args.split(" +");
+        long id;
+        long offset;
+        try {
+            id = Long.parseUnsignedLong(parts[0], 16);
+            offset = parts.length > 1 ? Long.parseLong(parts[1]) : 0;
+        } catch (NumberFormatException e) {
+            sendMessage("Usage: /download <id> [offset]");
+            return;
+        }
+        onDisk(() -> openDownload(id, parts[0], offset));
+    }
+
+    private void openDownload(long id, String idText, long offset) {
+        Attachments.Stored file = ChatServer.attachments.find(id);
+        if (file == null) {
+            sendMessage("No file with id " + idText);
+            return;
+        }
+        if (offset < 0 || offset > file.size) {
+            sendMessage("Offset " + offset + " is outside " + file.name + " (" + file.size + " bytes)");
+            return;
+        }
+        if (downloads.size() >= MAX_DOWNLOADS) {
+            sendMessage("Too many downloads at once, wait for one to finish");
+            return;
+        }
+        try {
+            downloads.add(new Attachments.Download(file, offset));
+        } catch (IOException e) {
+            sendMessage("Could not open " + file.name);
+            return;
+        }
+        if (closed.get()) {
+            closeTransfers();
+        } else if (transport != null) {
+            transport.flushOutbound();
+        } else {
+            scheduleWrite();
+        }
+    }
+
+    /** The download whose turn it is, or null. Only the writer calls this and downloadWritten. */
+    Attachments.Download nextDownload() {
+        return downloads.peek();
+    }
+
+    long downloadDelay(Attachments.Download download, long now) {
+        return download.delay(downloadRate, now);
+    }
+
+    /** Called after each complete frame of a download, to finish it or pass the turn on. */
+    void downloadWritten(Attachments.Download download) {
+        if (download.isDone()) {
+            downloads.remove(download);
+            download.close();
+        } else if (downloads.size() > 1 && downloads.remove(download)) {
+            downloads.add(download);
+        }
+    }
+
+    private void closeTransfers() {
+        for (Attachments.Upload upload : uploads.values()) {
+            upload.close();
+        }
+        uploads.clear();
+        Attachments.Download download;
+        while ((download = downloads.poll()) != null) {
+            download.close();
+        }
+    }
+
+    // No spaces, so "/msg" can name anyone, and nothing that breaks a line or passes for a
+    // remote user's "name (@node)"
+    private static boolean isUsername(String name) {
+        if (name.isEmpty() || name.length() > MAX_USERNAME) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '.' && c != '-' && c != '_') return false;
+        }
+        return true;
+    }
+
+    private static boolean isRoomName(String name) {
+        return !name.isEmpty() && name.length() <= MAX_ROOM_NAME && !name.contains(" ");
+    }
+
+    private void changeRoom(String newRoom) {
+        if (!isRoomName(newRoom)) {
+            sendMessage("Room names are 1-" + MAX_ROOM_NAME + " characters with no spaces");
+            return;
+        }
+        if (newRoom.equals(room)) {
+            sendMessage("You are already in #" + room);
+            return;
+        }
+        String oldRoom = room;
+        ChatServer.broadcastToRoom(oldRoom, "*** " + username + " has left #" + oldRoom + " ***", this);
+        switchRoom(newRoom);
+        sendMessage("*** You have joined #" + newRoom + " ***");
+        ChatServer.broadcast("*** " + username + " has joined #" + newRoom + " ***", this);
+    }
+
+    private void switchRoom(String newRoom) {
+        String oldRoom = room;
+        room = newRoom;
+        ChatServer.joinRoom(this, newRoom);
+        ChatServer.leaveRoom(this, oldRoom);
+        if (closed.get()) {
+            // close() may have run between the two writes and cleaned up the old room only.
+            ChatServer.leaveRoom(this, newRoom);
+        }
+    }
+
+    public void sendMessage(String msg) {
+        send(OutboundMessage.of(msg));
+    }
+
+    void send(OutboundMessage msg) {
+        outbound.offer(msg);
+        if (transport != null) {
+            transport.flushOutbound();
+        } else {
+            scheduleWrite();
+        }
+    }
+
+    OutboundQueue outbound() {
+        return outbound;
+    }
+
+    // Blocking mode has no writer thread per client: whenever something is queued, one task on
+    // the shared writer executor drains it, flushing once per batch, and gives the thread back
+    // once the queue is empty. Between messages it sends the next download chunk, once the
+    // transfer rate allows, straight from the file to the socket past the (flushed) buffer.
+    private void scheduleWrite() {
+        if (out != null && writeScheduled.compareAndSet(false, true)) {
+            writerExecutor.execute(this::writeOutbound);
+        }
+    }
+
+    private void writeOutbound() {
+        List<OutboundMessage> batch = new ArrayList<>(MAX_WRITE_BATCH);
+        try {
+            WritableByteChannel raw = Channels.newChannel(socket.getOutputStream());
+            while (true) {
+                int n = outbound.drainTo(batch, MAX_WRITE_BATCH);
+                if (n < 0) break;
+                Attachments.Download download = n == 0 ? downloads.peek() : null;
+                long delay = download == null ? -1 : download.delay(downloadRate, System.nanoTime());
+                if (n == 0 && delay != 0) {
+                    if (delay > 0) {
+                        pace(delay);
+                    }
+                    writeScheduled.set(false);
+                    // Something may have been queued after the drain, while the flag was still set.
+                    if (outbound.isEmpty() && (delay > 0 || downloads.isEmpty())
+                            || !writeScheduled.compareAndSet(false, true)) return;
+                    continue;
+                }
+                // A blocking write can't report progress, so the whole batch has WRITE_TIMEOUT
+                writeBlocked(true);
+                if (n > 0) {
+                    long bytes = 0;
+                    for (int i = 0; i < batch.size(); i++) {
+                        byte[] encoded = batch.get(i).bytes(format);
+                        out.write(encoded);
+                        bytes += encoded.length;
+                    }
+                    out.flush();
+                    ChatServer.metrics.messagesOut.add(batch.size());
+                    ChatServer.metrics.bytesOut.add(bytes);
+                    batch.clear();
+                } else {
+                    ChatServer.metrics.bytesOut.add(download.writeTo(raw));
+                    downloadWritten(download);
+                }
+                writeUnblocked();
+            }
+        } catch (IOException ignored) {
+        }
+        close();
+    }
+
+    private void pace(long delayNanos) {
+        if (pacing.compareAndSet(false, true)) {
+            ChatServer.timers.schedule(() -> {
+                pacing.set(false);
+                scheduleWrite();
+            }, delayNanos);
+        }
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    String getRoom() {
+        return room;
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        TimerWheel.Timeout check = idleCheck;
+        if (check != null) {
+            check.cancel();
+        }
+        outbound.close();
+        closeTransfers();
+        synchronized (readGate) {
+            readGate.notifyAll();
+        }
+        if (sendSession != null) {
+            ChatServer.parkSendSession(sendSession);
+        }
+        if (transport != null) {
+            transport.close();
+        } else {
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException ignored) {}
+        }
+        ChatServer.removeClient(this, username);
+    }
+}
@@ -0,0 +1,560 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Links this server to its peers so several processes act as one chat. Turned on by
+ * -Dchat.cluster.port (where peers connect to us) with -Dchat.cluster.peers=host:port,...
+ * and a unique -Dchat.node name per process. The port listens on -Dchat.cluster.bind
+ * (loopback unless set), and a peer's HELLO has to carry the -Dchat.cluster.secret every node
+ * shares, or the link is dropped before anything it sends is looked at.
+ *
+ * Every node dials every peer and only ever sends its own events: room messages, and users
+ * joining and leaving. Events carry a sequence number per origin node. A link keeps what it
+ * has sent until the peer acknowledges it and resends the rest after a reconnect; the peer
+ * drops anything at or below the last number it delivered. So each message arrives once, in
+ * the order its origin sent it.
+ *
+ * Each link has its own writer thread and a bounded backlog (-Dchat.cluster.buffer events),
+ * so a slow or dead peer never holds up a broadcast. A link whose backlog fills up is resynced
+ * rather than trimmed quietly: what it hasn't sent yet is thrown away, and once it catches up
+ * the peer gets, for each room, a notice of how many messages it missed, then a fresh snapshot
+ * of our users.
+ *
+ * Both sides send something at least once a heartbeat: the origin a PING when it has had
+ * nothing else to send, the peer an ACK after every ACK_INTERVAL events, every PING, and
+ * otherwise once a heartbeat while events arrive. A side that hears nothing for the heartbeat
+ * timeout treats the other as lost; a lost peer's users leave the merged user list until it
+ * reconnects and sends a fresh snapshot.
+ *
+ * Frames on the link: int32 length (of everything after it), type byte, int64 sequence
+ * number, int32 string count, then each string as int32 length and UTF-8 bytes.
+ */
+final class Cluster {
+    static final boolean ENABLED = System.getProperty("chat.cluster.port") != null;
+
+    private static final String NODE = System.getProperty("chat.node", "node-" + Long.toHexString(System.nanoTime()));
+    private static final int PORT = Integer.getInteger("chat.cluster.port", 0);
+    private static final String BIND = System.getProperty("chat.cluster.bind", "127.0.0.1");
+    private static final byte[] SECRET = System.getProperty("chat.cluster.secret", "").getBytes(StandardCharsets.UTF_8);
+    private static final String PEERS = System.getProperty("chat.cluster.peers", "");
+    private static final int BUFFER = Integer.getInteger("chat.cluster.buffer", 65536);
+    private static final int HEARTBEAT_MILLIS = 1000;
+    private static final long HEARTBEAT_NANOS = TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS);
+    private static final int TIMEOUT_MILLIS = 3 * HEARTBEAT_MILLIS;
+    private static final int ACK_INTERVAL = 64;
+
+    // Origin to peer: its name and the shared secret (with its start time in the sequence
+    // field), then a snapshot
+    // of its users, then events and, when idle, pings.
+    private static final byte HELLO = 1;
+    private static final byte SNAPSHOT = 2;
+    private static final byte MESSAGE = 3;
+    private static final byte JOIN = 4;
+    private static final byte LEAVE = 5;
+    private static final byte PING = 6;
+    // Peer to origin: everything up to this sequence number has been delivered.
+    private static final byte ACK = 7;
+    // Origin to peer, after its link overflowed: a room and how many of its messages were lost.
+    private static final byte LOST = 8;
+
+    // A restarted node starts counting from 1 again; peers tell the runs apart by this.
+    private final long epoch = System.currentTimeMillis();
+    // Taking a sequence number and queueing the event on every link happen together, so
+    // all links carry the same order, and a snapshot always matches its sequence number.
+    private final ReentrantLock publishLock = new ReentrantLock();
+    private long lastSequence;
+    private final Map<String, Integer> localUsers = new HashMap<>();
+    private final List<PeerLink> links = new ArrayList<>();
+    private final ConcurrentHashMap<String, Origin> origins = new ConcurrentHashMap<>();
+
+    private static final class Event {
+        final long sequence;
+        final byte[] frame;
+        // Set for room messages, so an overflowing link can say where messages were lost.
+        final String room;
+
+        Event(long sequence, byte[] frame, String room) {
+            this.sequence = sequence;
+            this.frame = frame;
+            this.room = room;
+        }
+    }
+
+    void start() {
+        if (!ENABLED) return;
+        if (SECRET.length == 0) {
+            System.err.println("Cluster mode needs -Dchat.cluster.secret, staying a single server");
+            return;
+        }
+        for (String peer : PEERS.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) continue;
+            int colon = peer.lastIndexOf(':');
+            links.add(new PeerLink(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        Thread acceptor = new Thread(this::acceptLoop, "chat-cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : links) {
+            Thread writer = new Thread(link::run, "chat-cluster-link-" + link.host + ":" + link.port);
+            writer.setDaemon(true);
+            writer.start();
+        }
+        System.out.println("Cluster node " + NODE + " on " + BIND + ":" + PORT + ", peers: " + PEERS);
+    }
+
+    /** Sends a room message to every peer; a no-op outside cluster mode. */
+    void publishMessage(String room, String text) {
+        if (!ENABLED) return;
+        publish(MESSAGE, room, text);
+    }
+
+    void joined(String username) {
+        if (!ENABLED) return;
+        publish(JOIN, username, null);
+    }
+
+    void left(String username) {
+        if (!ENABLED) return;
+        publish(LEAVE, username, null);
+    }
+
+    private void publish(byte type, String first, String second) {
+        publishLock.lock();
+        try {
+            if (type == JOIN) {
+                localUsers.merge(first, 1, Integer::sum);
+            } else if (type == LEAVE) {
+                localUsers.computeIfPresent(first, (name, count) -> count > 1 ? count - 1 : null);
+            }
+            long sequence = ++lastSequence;
+            Event event = new Event(sequence, second == null
+                    ? frame(type, sequence, first)
+                    : frame(type, sequence, first, second), type == MESSAGE ? first : null);
+            for (PeerLink link : links) {
+                link.enqueue(event);
+            }
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    // Everyone logged in here right now, as of the sequence number the snapshot carries.
+    private byte[] snapshot() {
+        publishLock.lock();
+        try {
+            List<String> users = new ArrayList<>();
+            for (Map.Entry<String, Integer> user : localUsers.entrySet()) {
+                for (int i = 0; i < user.getValue(); i++) {
+                    users.add(user.getKey());
+                }
+            }
+            return frame(SNAPSHOT, lastSequence, users.toArray(new String[0]));
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    private static byte[] frame(byte type, long sequence, String... strings) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0);
+            out.writeByte(type);
+            out.writeLong(sequence);
+            out.writeInt(strings.length);
+            for (String string : strings) {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    /** A frame as read off a link: type, sequence number and string fields. */
+    private static final class Incoming {
+        byte type;
+        long sequence;
+        String[] strings;
+    }
+
+    private static Incoming read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length - 1 > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Bad cluster frame length " + length);
+        }
+        // Counts and lengths come from the peer, so each is checked against what is left of
+        // the frame before anything is allocated for it.
+        int remaining = length - 1 - 8 - 4;
+        if (remaining < 0) {
+            throw new IOException("Bad cluster frame length " + length);
+        }
+        Incoming incoming = new Incoming();
+        incoming.type = in.readByte();
+        incoming.sequence = in.readLong();
+        int count = in.readInt();
+        if (count < 0 || count > remaining / 4) {
+            throw new IOException("Bad cluster string count " + count);
+        }
+        incoming.strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            int size = in.readInt();
+            remaining -= 4;
+            if (size < 0 || size > remaining) {
+                throw new IOException("Bad cluster string length " + size);
+            }
+            byte[] utf8 = new byte[size];
+            in.readFully(utf8);
+            remaining -= size;
+            incoming.strings[i] = new String(utf8, StandardCharsets.UTF_8);
+        }
+        if (remaining != 0) {
+            throw new IOException("Cluster frame has " + remaining + " bytes left over");
+        }
+        return incoming;
+    }
+
+    /** Our side of the connection we dial to one peer: sends our events, reads its acks. */
+    private final class PeerLink {
+        final String host;
+        final int port;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition ready = lock.newCondition();
+        // Sent but not acknowledged, then not sent yet; both in sequence order.
+        private final ArrayDeque<Event> inFlight = new ArrayDeque<>();
+        private final ArrayDeque<Event> pending = new ArrayDeque<>();
+        // Set while resyncing: room -> messages thrown away since the backlog filled up.
+        private Map<String, Integer> lost;
+
+        PeerLink(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void enqueue(Event event) {
+            lock.lock();
+            try {
+                if (lost == null && inFlight.size() + pending.size() >= BUFFER) {
+                    // The peer is too far behind to catch up. Throw away what it hasn't been sent,
+                    // and everything until the writer has caught up, keeping count per room.
+                    System.err.println("Cluster link to " + host + ":" + port + " is full, resyncing the peer");
+                    lost = new TreeMap<>();
+                    for (Event dropped : pending) {
+                        countLost(dropped);
+                    }
+                    pending.clear();
+                }
+                if (lost != null) {
+                    countLost(event);
+                    return;
+                }
+                pending.addLast(event);
+                ready.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void countLost(Event event) {
+            if (event.room != null) {
+                lost.merge(event.room, 1, Integer::sum);
+            }
+        }
+
+        private void acknowledged(long sequence) {
+            lock.lock();
+            try {
+                while (!inFlight.isEmpty() && inFlight.peekFirst().sequence <= sequence) {
+                    inFlight.pollFirst();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void run() {
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(TIMEOUT_MILLIS);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    out.write(frame(HELLO, epoch, NODE, new String(SECRET, StandardCharsets.UTF_8)));
+                    out.write(snapshot());
+                    out.flush();
+                    lock.lock();
+                    try {
+                        // Anything the peer never acknowledged goes again; it drops what it already has.
+                        while (!inFlight.isEmpty()) {
+                            pending.addFirst(inFlight.pollLast());
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    System.out.println("Cluster link to " + host + ":" + port + " is up");
+
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    Thread acks = new Thread(() -> readAcks(socket, in), "chat-cluster-acks-" + host + ":" + port);
+                    acks.setDaemon(true);
+                    acks.start();
+                    writeLoop(out);
+                } catch (IOException e) {
+                    // Peer down or link broken: try again shortly, keeping the backlog.
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(HEARTBEAT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // Events go out as they come; a PING goes out whenever nothing else has for a heartbeat,
+        // so the peer's read timeout never fires on a healthy link, however slow the traffic.
+        private void writeLoop(DataOutputStream out) throws IOException, InterruptedException {
+            List<Event> batch = new ArrayList<>();
+            long lastSent = System.nanoTime();
+            while (true) {
+                Map<String, Integer> resync = null;
+                lock.lock();
+                try {
+                    long quiet = HEARTBEAT_NANOS - (System.nanoTime() - lastSent);
+                    if (pending.isEmpty() && lost == null && quiet > 0) {
+                        ready.awaitNanos(quiet);
+                    }
+                    Event event;
+                    while (batch.size() < ACK_INTERVAL && (event = pending.pollFirst()) != null) {
+                        inFlight.addLast(event);
+                        batch.add(event);
+                    }
+                    if (pending.isEmpty() && lost != null) {
+                        resync = lost;
+                        lost = null;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                long now = System.nanoTime();
+                if (resync != null) {
+                    // Caught up. Events queued from here on follow the snapshot; joins and leaves
+                    // it already covers are skipped by the peer. Not kept for resending: a
+                    // reconnect sends a new snapshot anyway.
+                    for (Event event : batch) {
+                        out.write(event.frame);
+                    }
+                    batch.clear();
+                    for (Map.Entry<String, Integer> room : resync.entrySet()) {
+                        out.write(frame(LOST, 0, room.getKey(), room.getValue().toString()));
+                    }
+                    out.write(snapshot());
+                    out.flush();
+                    lastSent = now;
+                    continue;
+                }
+                if (batch.isEmpty()) {
+                    if (now - lastSent < HEARTBEAT_NANOS) continue;
+                    out.write(frame(PING, 0));
+                }
+                for (Event event : batch) {
+                    out.write(event.frame);
+                }
+                out.flush();
+                lastSent = now;
+                batch.clear();
+            }
+        }
+
+        private void readAcks(Socket socket, DataInputStream in) {
+            try {
+                while (true) {
+                    Incoming ack = read(in);
+                    if (ack.type == ACK) {
+                        acknowledged(ack.sequence);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Cluster link to " + host + ":" + port + " is down");
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /** What we know about one peer node, from the link it dialed to us. */
+    private static final class Origin {
+        final String node;
+        long epoch;
+        // Last event delivered here, and the point the current presence snapshot was taken.
+        long delivered;
+        long snapshotSequence;
+        final Map<String, Integer> users = new HashMap<>();
+        Socket connection;
+
+        Origin(String node) {
+            this.node = node;
+        }
+
+        // How one of its users appears in the merged user list.
+        String display(String user) {
+            return user + " (@" + node + ")";
+        }
+
+        // Takes a new picture of the node's users and passes on the difference as users coming
+        // and going. Called with the origin locked.
+        void replaceUsers(Map<String, Integer> next) {
+            for (Map.Entry<String, Integer> user : users.entrySet()) {
+                for (int gone = user.getValue() - next.getOrDefault(user.getKey(), 0); gone > 0; gone--) {
+                    ChatServer.userOffline(display(user.getKey()));
+                }
+            }
+            for (Map.Entry<String, Integer> user : next.entrySet()) {
+                for (int come = user.getValue() - users.getOrDefault(user.getKey(), 0); come > 0; come--) {
+                    ChatServer.userOnline(display(user.getKey()));
+                }
+            }
+            users.clear();
+            users.putAll(next);
+        }
+    }
+
+    private void acceptLoop() {
+        try (ServerSocket server = new ServerSocket(PORT, 50, InetAddress.getByName(BIND))) {
+            while (true) {
+                Socket socket = server.accept();
+                Thread reader = new Thread(() -> serve(socket), "chat-cluster-peer");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } catch (IOException e) {
+            System.err.println("Cluster listener error: " + e.getMessage());
+        }
+    }
+
+    // Reads one peer's events in order and delivers them to local members.
+    private void serve(Socket socket) {
+        Origin origin = null;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Incoming hello = read(in);
+            if (hello.type != HELLO || hello.strings.length != 2
+                    || !MessageDigest.isEqual(SECRET, hello.strings[1].getBytes(StandardCharsets.UTF_8))) {
+                System.err.println("Cluster connection from " + socket.getRemoteSocketAddress() + " refused: bad HELLO");
+                return;
+            }
+            origin = origins.computeIfAbsent(hello.strings[0], Origin::new);
+            synchronized (origin) {
+                if (origin.epoch != hello.sequence) {
+                    origin.epoch = hello.sequence;
+                    origin.delivered = 0;
+                }
+                if (origin.connection != null) {
+                    origin.connection.close();
+                }
+                origin.connection = socket;
+            }
+            System.out.println("Cluster node " + origin.node + " connected");
+
+            int unacknowledged = 0;
+            long lastAck = System.nanoTime();
+            while (true) {
+                Incoming event = read(in);
+                if (event.type == PING) {
+                    unacknowledged = ACK_INTERVAL;
+                } else if (event.type == LOST) {
+                    if (event.strings.length == 2) {
+                        ChatServer.deliverToRoom(event.strings[0], "*** " + event.strings[1] + " messages from "
+                                + origin.node + " were lost, the link to it fell behind ***", null);
+                    }
+                } else if (event.type == SNAPSHOT) {
+                    Map<String, Integer> users = new HashMap<>();
+                    for (String user : event.strings) {
+                        users.merge(user, 1, Integer::sum);
+                    }
+                    synchronized (origin) {
+                        origin.replaceUsers(users);
+                        origin.snapshotSequence = event.sequence;
+                    }
+                } else if (deliver(origin, event)) {
+                    unacknowledged++;
+                }
+                long now = System.nanoTime();
+                if (unacknowledged >= ACK_INTERVAL || now - lastAck >= HEARTBEAT_NANOS) {
+                    long delivered;
+                    synchronized (origin) {
+                        delivered = origin.delivered;
+                    }
+                    out.write(frame(ACK, delivered));
+                    out.flush();
+                    unacknowledged = 0;
+                    lastAck = now;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            System.err.println("Cluster node " + (origin == null ? "?" : origin.node) + " stopped responding");
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+            if (origin != null) {
+                synchronized (origin) {
+                    if (origin.connection == socket) {
+                        origin.connection = null;
+                        origin.replaceUsers(Collections.<String, Integer>emptyMap());
+                        System.out.println("Cluster node " + origin.node + " lost");
+                    }
+                }
+            }
+        }
+    }
+
+    // Applies an event unless it is a resend of one already delivered.
+    private boolean deliver(Origin origin, Incoming event) {
+        String room = null;
+        synchronized (origin) {
+            if (event.sequence <= origin.delivered) return false;
+            origin.delivered = event.sequence;
+            if (event.type == MESSAGE && event.strings.length == 2) {
+                room = event.strings[0];
+            } else if (event.sequence > origin.snapshotSequence && event.strings.length == 1) {
+                if (event.type == JOIN) {
+                    origin.users.merge(event.strings[0], 1, Integer::sum);
+                    ChatServer.userOnline(origin.display(event.strings[0]));
+                } else if (event.type == LEAVE && origin.users.containsKey(event.strings[0])) {
+                    origin.users.computeIfPresent(event.strings[0], (name, count) -> count > 1 ? count - 1 : null);
+                    ChatServer.userOffline(origin.display(event.strings[0]));
+                }
+            }
+        }
+        if (room != null) {
+            ChatServer.deliverToRoom(room, event.strings[1], null);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Inbound limits for one connection, plus the server-wide ones it shares with every other.
+ * Each line or frame costs one message and its size in bytes from the per-user buckets,
+ * then from the global ones.
+ *
+ * A client over its own limit has the message dropped and gets a strike, at most one per
+ * second, so strikes measure how long it has kept flooding rather than how fast. Enough
+ * strikes mute it for a while (everything it sends is dropped, and keeps counting), and
+ * more after that disconnect it. Strikes are forgotten after a quiet STRIKE_WINDOW.
+ * Going over the global limit only drops the message: it isn't that client's fault.
+ *
+ * Only the connection's own reading thread calls check(), so the escalation state is plain
+ * fields; the buckets themselves are lock-free.
+ */
+final class FloodControl {
+    static final int MAX_LINE_LENGTH = Integer.getInteger("chat.line.max", 8192);
+
+    private static final long USER_MESSAGES = Long.getLong("chat.limit.user.messages", 20);
+    private static final long USER_BURST = Long.getLong("chat.limit.user.burst", 40);
+    private static final long USER_BYTES = Long.getLong("chat.limit.user.bytes", 64 * 1024);
+    private static final long MUTE_AFTER = Long.getLong("chat.limit.mute.after", 5);
+    private static final long DISCONNECT_AFTER = Long.getLong("chat.limit.disconnect.after", 15);
+    private static final long MUTE_NANOS = Long.getLong("chat.limit.mute.seconds", 30) * 1_000_000_000L;
+    private static final long STRIKE_INTERVAL = 1_000_000_000L;
+    private static final long STRIKE_WINDOW = 10_000_000_000L;
+
+    private static final long GLOBAL_MESSAGES = Long.getLong("chat.limit.global.messages", 5000);
+    private static final long GLOBAL_BYTES = Long.getLong("chat.limit.global.bytes", 8 << 20);
+    // The global buckets hold one second's worth.
+    private static final TokenBucket globalMessages = new TokenBucket(GLOBAL_MESSAGES, GLOBAL_MESSAGES);
+    private static final TokenBucket globalBytes = new TokenBucket(GLOBAL_BYTES, Math.max(GLOBAL_BYTES, MAX_LINE_LENGTH));
+
+    /** Deliver it. */
+    static final int ACCEPT = 0;
+    /** Drop it without telling the client again. */
+    static final int DROP = 1;
+    /** Drop it and tell the client to slow down: the first strike of a run. */
+    static final int THROTTLE = 2;
+    /** Drop it; the client has just been muted. */
+    static final int MUTE = 3;
+    /** Drop it and close the connection. */
+    static final int DISCONNECT = 4;
+    /** Drop it; the server as a whole is over its limit. */
+    static final int BUSY = 5;
+
+    private final TokenBucket messages = new TokenBucket(USER_MESSAGES, USER_BURST);
+    // A full-length line must always fit in one burst.
+    private final TokenBucket bytes = new TokenBucket(USER_BYTES, Math.max(USER_BYTES, MAX_LINE_LENGTH));
+    private int strikes;
+    private long lastStrike;
+    private long lastViolation;
+    private long mutedUntil = System.nanoTime();
+
+    /** Charges a line or frame of the given size; a size over MAX_LINE_LENGTH is a violation by itself. */
+    int check(int size) {
+        long now = System.nanoTime();
+        if (now - mutedUntil < 0) {
+            return strike(now);
+        }
+        if (size > MAX_LINE_LENGTH || !messages.tryTake(1, now) || !bytes.tryTake(size, now)) {
+            return strike(now);
+        }
+        if (!globalMessages.tryTake(1, now) || !globalBytes.tryTake(size, now)) {
+            return BUSY;
+        }
+        return ACCEPT;
+    }
+
+    private int strike(long now) {
+        if (strikes > 0 && now - lastViolation > STRIKE_WINDOW) {
+            strikes = 0;
+        }
+        lastViolation = now;
+        if (strikes > 0 && now - lastStrike < STRIKE_INTERVAL) return DROP;
+        lastStrike = now;
+        strikes++;
+        if (strikes >= DISCONNECT_AFTER) return DISCONNECT;
+        if (strikes == MUTE_AFTER) {
+            mutedUntil = now + MUTE_NANOS;
+            return MUTE;
+        }
+        return strikes == 1 ? THROTTLE : DROP;
+    }
+}
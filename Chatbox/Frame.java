@@ -0,0 +1,92 @@
+/**
+ * Wire layout of the binary protocol a client can switch to during the handshake by
+ * sending "/hello &lt;version&gt;" instead of its username:
+ *
+ * <pre>
+ *   int32 length   bytes that follow: the type byte plus the payload
+ *   byte  type
+ *   byte[] payload
+ * </pre>
+ *
+ * Lines become TEXT frames, so a message may contain newlines. Integers are big-endian.
+ */
+final class Frame {
+    static final int PROTOCOL_VERSION = 1;
+    static final int HEADER_LENGTH = 5;
+    static final int MAX_PAYLOAD_LENGTH = Integer.getInteger("chat.frame.max", 1 << 20);
+
+    /** UTF-8 text with the same meaning as one line of the text protocol. */
+    static final byte TEXT = 1;
+    /** A broadcast from the message history: int64 message id, then UTF-8 text. */
+    static final byte MESSAGE = 2;
+    /** Several complete frames back to back, such as a history replay; only sent deflated. */
+    static final byte BATCH = 3;
+    /** Heartbeat; the other side answers with a PONG. Either side may send one, payload empty. */
+    static final byte PING = 4;
+    static final byte PONG = 5;
+    /**
+     * Client to server: starts or resumes an upload. int64 upload id (chosen by the client),
+     * int64 size, then the UTF-8 file name. Answered with an UPLOAD_ACK.
+     */
+    static final byte UPLOAD = 6;
+    /** A piece of a file, either way: int64 upload or file id, int64 offset, then the bytes. */
+    static final byte CHUNK = 7;
+    /**
+     * Server to client: int64 upload id, int64 bytes stored so far, int64 offset the client
+     * may send up to. A negative limit means the upload was refused; stored equal to the
+     * size means it is complete.
+     */
+    static final byte UPLOAD_ACK = 8;
+    /**
+     * Server to client, before the CHUNK frames of a "/download": int64 file id, int64 size,
+     * int64 offset the chunks start at, then the UTF-8 file name.
+     */
+    static final byte DOWNLOAD = 9;
+    /**
+     * Client to server: a chat line the client wants acknowledged. int64 sequence number,
+     * increasing within the client's session, then UTF-8 text meaning the same as a TEXT frame.
+     * Only sent to servers whose "/hello-ok" lists "send"; answered with a SEND_ACK.
+     */
+    static final byte SEND = 10;
+    /**
+     * Server to client: int64 sequence of the SEND it answers, int64 history id of the
+     * resulting message. The id is 0 when nothing was broadcast (a command, or a resend the
+     * server had already handled) and -1 when the message was refused.
+     */
+    static final byte SEND_ACK = 11;
+    /**
+     * Server to client: a file shared in chat, sent in place of the MESSAGE announcing it.
+     * int64 history id (0 when the history is off), int64 file id for "/download", int64
+     * size, then UTF-8: the file name, a newline and the uploader's name. Only the server
+     * sends these, so a client can offer the download without trusting the chat text.
+     */
+    static final byte FILE = 12;
+    /**
+     * Set on the type byte of a frame whose payload is deflated (zlib format). Only sent to
+     * clients that asked for it with the "deflate" option of "/hello".
+     */
+    static final byte DEFLATED = (byte) 0x80;
+
+    private Frame() {}
+
+    /** Builds one frame whose payload is the given parts back to back. */
+    static byte[] encode(byte type, byte[]... payload) {
+        int payloadLength = 0;
+        for (byte[] part : payload) {
+            payloadLength += part.length;
+        }
+        byte[] frame = new byte[HEADER_LENGTH + payloadLength];
+        int length = payloadLength + 1;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        frame[4] = type;
+        int position = HEADER_LENGTH;
+        for (byte[] part : payload) {
+            System.arraycopy(part, 0, frame, position, part.length);
+            position += part.length;
+        }
+        return frame;
+    }
+}
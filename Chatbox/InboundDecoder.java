@@ -0,0 +1,139 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Turns the bytes a client sends into lines or frames for its ClientHandler. Both server
+ * modes feed it whatever they read; it keeps the partial line or frame between reads and
+ * checks the handler's framing mode at every message boundary, so the switch from text
+ * to frames during the handshake can happen in the middle of a read.
+ */
+final class InboundDecoder {
+    // Text clients write lines through a PrintWriter on the platform charset.
+    private static final Charset LINE_CHARSET = Charset.defaultCharset();
+
+    private final ClientHandler handler;
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    // Set once the current line passed the length limit; the rest of it is skipped unbuffered.
+    private boolean overlong;
+    private byte lastByte;
+    private final byte[] header = new byte[Frame.HEADER_LENGTH];
+    private int headerFill;
+    private byte[] payload;
+    private int payloadFill;
+    // Set for a frame too long for its type. Only its first bytes are kept, enough for the
+    // sequence number a SEND is answered with; the other skipping bytes are passed over.
+    private boolean frameTooLong;
+    private int skipping;
+    private static final int KEPT_PREFIX = 8;
+
+    InboundDecoder(ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Consumes everything in the buffer, or stops early, leaving the rest, when the handler
+     * pauses reading. Returns false once the handler is done with the connection or the
+     * client broke the framing rules.
+     */
+    boolean feed(ByteBuffer in) {
+        handler.markRead();
+        while (in.hasRemaining() && !handler.readingPaused()) {
+            boolean keepGoing = handler.isFramed() ? readFrame(in) : readLine(in);
+            if (!keepGoing) return false;
+        }
+        return true;
+    }
+
+    // Mirrors BufferedReader.readLine(): a line ends at "\n" or "\r\n". At most
+    // FloodControl.MAX_LINE_LENGTH bytes of a line are ever held.
+    private boolean readLine(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b != '\n') {
+                if (overlong) continue;
+                if (partialLine.size() > FloodControl.MAX_LINE_LENGTH) {
+                    overlong = true;
+                    partialLine.reset();
+                    continue;
+                }
+                partialLine.write(b);
+                lastByte = b;
+                continue;
+            }
+            if (overlong) {
+                overlong = false;
+                return handler.admit(Integer.MAX_VALUE) != FloodControl.DISCONNECT;
+            }
+            int length = partialLine.size();
+            if (length > 0 && lastByte == '\r') {
+                length--;
+            }
+            int verdict = handler.admit(length);
+            if (verdict != FloodControl.ACCEPT) {
+                partialLine.reset();
+                return verdict != FloodControl.DISCONNECT;
+            }
+            byte[] raw = partialLine.toByteArray();
+            partialLine.reset();
+            return handler.handleLine(new String(raw, 0, length, LINE_CHARSET));
+        }
+        return true;
+    }
+
+    private boolean readFrame(ByteBuffer in) {
+        if (payload == null) {
+            int n = Math.min(in.remaining(), header.length - headerFill);
+            in.get(header, headerFill, n);
+            headerFill += n;
+            if (headerFill < header.length) return true;
+
+            int length = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16)
+                    | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+            if (length < 1 || length - 1 > Frame.MAX_PAYLOAD_LENGTH) {
+                System.err.println("Bad frame length " + length + " from user " + handler.getUsername());
+                return false;
+            }
+            if (length - 1 > maxPayload(header[4])) {
+                // Turned down by its size alone, like an over-long line, without holding it.
+                frameTooLong = true;
+                payload = new byte[KEPT_PREFIX];
+                skipping = length - 1 - KEPT_PREFIX;
+            } else {
+                frameTooLong = false;
+                payload = new byte[length - 1];
+            }
+            payloadFill = 0;
+        }
+        int n = Math.min(in.remaining(), payload.length - payloadFill);
+        in.get(payload, payloadFill, n);
+        payloadFill += n;
+        if (payloadFill < payload.length) return true;
+        if (skipping > 0) {
+            n = Math.min(in.remaining(), skipping);
+            in.position(in.position() + n);
+            skipping -= n;
+            if (skipping > 0) return true;
+        }
+
+        byte type = header[4];
+        byte[] complete = payload;
+        payload = null;
+        headerFill = 0;
+        // File chunks are paced by the upload window and transfer rate, not the message limits.
+        int verdict = type == Frame.CHUNK ? FloodControl.ACCEPT
+                : handler.admit(frameTooLong ? Integer.MAX_VALUE : complete.length);
+        if (verdict != FloodControl.ACCEPT) {
+            handler.refuseFrame(type, complete);
+            return verdict != FloodControl.DISCONNECT;
+        }
+        return handler.handleFrame(type, complete);
+    }
+
+    // Only uploads carry more than a chat line. Everything else is held to the line limit, plus
+    // a SEND's sequence number, so a client can't make the server buffer more than that before
+    // flood control has seen it.
+    private static int maxPayload(byte type) {
+        return type == Frame.CHUNK || type == Frame.UPLOAD ? Frame.MAX_PAYLOAD_LENGTH : FloodControl.MAX_LINE_LENGTH + 8;
+    }
+}
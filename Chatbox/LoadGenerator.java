@@ -0,0 +1,254 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load for a running server: opens many simulated clients, sends chat messages at
+ * a fixed total rate and reports throughput and end-to-end latency.
+ *
+ * <pre>
+ *   java LoadGenerator &lt;host&gt; &lt;port&gt;
+ * </pre>
+ *
+ * Options: -Dload.clients (1000), -Dload.rooms (10, clients spread evenly), -Dload.rate
+ * (total messages per second, 1000), -Dload.warmup and -Dload.duration (seconds, 5 and 30),
+ * -Dload.protocol=framed|text (framed).
+ *
+ * Every message carries the time it was due to be sent, and latency runs from that time to
+ * its arrival at each recipient. A server that falls behind therefore shows up as latency
+ * instead of quietly lowering the send rate.
+ */
+public class LoadGenerator {
+    private static final int CLIENTS = Integer.getInteger("load.clients", 1000);
+    private static final int ROOMS = Math.max(1, Integer.getInteger("load.rooms", 10));
+    private static final int RATE = Integer.getInteger("load.rate", 1000);
+    private static final int WARMUP_SECONDS = Integer.getInteger("load.warmup", 5);
+    private static final int DURATION_SECONDS = Integer.getInteger("load.duration", 30);
+    private static final boolean FRAMED = !"text".equals(System.getProperty("load.protocol"));
+    private static final String MARKER = "~lg ";
+
+    private static final AtomicLong sent = new AtomicLong();
+    private static final AtomicLong expected = new AtomicLong();
+    private static final AtomicLong delivered = new AtomicLong();
+    private static final LatencyHistogram latencies = new LatencyHistogram();
+    // Messages due before this time belong to the warmup and aren't recorded.
+    private static volatile long measureFrom = Long.MAX_VALUE;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java LoadGenerator <host> <port>");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        System.out.printf("%d clients in %d rooms, %d msg/s, %s protocol%n",
+                CLIENTS, ROOMS, RATE, FRAMED ? "framed" : "text");
+
+        long connectStart = System.nanoTime();
+        List<SimClient> clients = new ArrayList<>(CLIENTS);
+        int[] roomSizes = new int[ROOMS];
+        for (int i = 0; i < CLIENTS; i++) {
+            SimClient client = new SimClient(i, i % ROOMS);
+            client.connect(host, port);
+            clients.add(client);
+            roomSizes[client.room]++;
+        }
+        System.out.printf("connected in %.1f s%n", (System.nanoTime() - connectStart) / 1e9);
+
+        // Open loop: message k is due at start + k * interval, whether or not the last send returned.
+        long interval = 1_000_000_000L / Math.max(1, RATE);
+        long start = System.nanoTime();
+        measureFrom = start + WARMUP_SECONDS * 1_000_000_000L;
+        long end = measureFrom + DURATION_SECONDS * 1_000_000_000L;
+        long nextReport = start + 1_000_000_000L;
+        long lastSent = 0;
+        long lastDelivered = 0;
+        long measuredSent = 0;
+        long measuredExpected = 0;
+        boolean measuring = false;
+        for (long k = 0; ; k++) {
+            long due = start + k * interval;
+            if (due >= end) break;
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= nextReport) {
+                    long s = sent.get();
+                    long d = delivered.get();
+                    System.out.printf("%3ds  sent %7d/s  delivered %9d/s%s%n", (nextReport - start) / 1_000_000_000L,
+                            s - lastSent, d - lastDelivered, measuring ? "" : "  (warmup)");
+                    lastSent = s;
+                    lastDelivered = d;
+                    nextReport += 1_000_000_000L;
+                }
+                if (!measuring && now >= measureFrom) {
+                    measuring = true;
+                    measuredSent = -sent.get();
+                    measuredExpected = -expected.get();
+                }
+                if (now >= due) break;
+                LockSupport.parkNanos(Math.min(due - now, 100_000L));
+            }
+            SimClient sender = clients.get((int) (k % CLIENTS));
+            sender.send(MARKER + due);
+            sent.incrementAndGet();
+            expected.addAndGet(roomSizes[sender.room] - 1);
+        }
+        measuredSent += sent.get();
+        measuredExpected += expected.get();
+
+        // Let whatever is still in flight arrive before reading the counters.
+        long drainUntil = System.nanoTime() + 2_000_000_000L;
+        while (delivered.get() < expected.get() && System.nanoTime() < drainUntil) {
+            Thread.sleep(10);
+        }
+        // Every delivery of a message sent after the warmup has a latency sample.
+        long measuredDelivered = latencies.count();
+
+        System.out.printf("throughput: sent %.1f msg/s, delivered %.1f msg/s (%.2f%% of expected)%n",
+                measuredSent / (double) DURATION_SECONDS, measuredDelivered / (double) DURATION_SECONDS,
+                measuredExpected == 0 ? 100.0 : 100.0 * measuredDelivered / measuredExpected);
+        System.out.printf("latency (ms): p50 %.3f  p99 %.3f  p999 %.3f  max %.3f  (%d samples)%n",
+                latencies.percentile(0.50) / 1e3, latencies.percentile(0.99) / 1e3,
+                latencies.percentile(0.999) / 1e3, latencies.max() / 1e3, latencies.count());
+
+        for (SimClient client : clients) {
+            client.close();
+        }
+        System.exit(0);
+    }
+
+    /** One simulated ChatClient: a socket, the handshake, and a thread reading everything sent to it. */
+    private static final class SimClient {
+        private final int id;
+        final int room;
+        private Socket socket;
+        private DataInputStream in;
+        private OutputStream out;
+
+        SimClient(int id, int room) {
+            this.id = id;
+            this.room = room;
+        }
+
+        void connect(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream());
+
+            readLine(); // "Enter your username:"
+            if (FRAMED) {
+                writeLine("/hello " + Frame.PROTOCOL_VERSION);
+                String reply = readLine();
+                if (reply == null || !reply.startsWith("/hello-ok")) {
+                    throw new IOException("Server did not accept framing: " + reply);
+                }
+            }
+            send("load" + id);
+            String welcome;
+            do {
+                welcome = receive();
+            } while (welcome != null && !welcome.startsWith("Welcome"));
+            if (room > 0) {
+                send("/join load-" + room);
+            }
+
+            Thread reader = new Thread(null, this::readLoop, "load-reader-" + id, 128 * 1024);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        synchronized void send(String text) throws IOException {
+            if (FRAMED) {
+                out.write(Frame.encode(Frame.TEXT, text.getBytes(StandardCharsets.UTF_8)));
+            } else {
+                out.write((text + "\n").getBytes());
+            }
+            out.flush();
+        }
+
+        private synchronized void pong() throws IOException {
+            out.write(Frame.encode(Frame.PONG));
+            out.flush();
+        }
+
+        private void writeLine(String line) throws IOException {
+            out.write((line + "\n").getBytes());
+            out.flush();
+        }
+
+        private void readLoop() {
+            try {
+                String message;
+                while ((message = receive()) != null) {
+                    int marker = message.lastIndexOf(MARKER);
+                    if (marker < 0) continue;
+                    long due;
+                    try {
+                        due = Long.parseLong(message.substring(marker + MARKER.length()).trim());
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    delivered.incrementAndGet();
+                    if (due >= measureFrom) {
+                        latencies.record((System.nanoTime() - due) / 1000);
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        private String receive() throws IOException {
+            if (!FRAMED) {
+                return readLine();
+            }
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return null;
+                }
+                if (length < 1 || length - 1 > Frame.MAX_PAYLOAD_LENGTH) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                byte type = in.readByte();
+                byte[] payload = new byte[length - 1];
+                in.readFully(payload);
+                if (type == Frame.TEXT) {
+                    return new String(payload, StandardCharsets.UTF_8);
+                } else if (type == Frame.MESSAGE && payload.length >= 8) {
+                    return new String(payload, 8, payload.length - 8, StandardCharsets.UTF_8);
+                } else if (type == Frame.PING) {
+                    pong();
+                }
+            }
+        }
+
+        // Byte by byte from the buffered stream, so nothing past the line is lost when frames start.
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                line.write(b);
+            }
+            if (b == -1 && line.size() == 0) {
+                return null;
+            }
+            String text = line.toString();
+            return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+        }
+
+        void close() {
+            try {
+                send("/exit");
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,461 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only history of every broadcast, kept in memory-mapped segment files.
+ *
+ * Broadcasting threads only take an id and hand the entry to a queue; one writer thread
+ * copies entries into the active segment in id order. Replays read the mapped segments on
+ * their own executor, so neither side blocks live fan-out.
+ *
+ * Each segment "&lt;first id&gt;.log" holds records of
+ * [int length][long id][long time][short room length][room][text], ending at the first
+ * zero length. Its sparse index "&lt;first id&gt;.idx" holds an (id, position) pair roughly
+ * every INDEX_INTERVAL bytes, which lets a restart find the end of the log, and a replay
+ * find its starting point, without reading whole segments.
+ */
+final class MessageLog {
+    static final boolean ENABLED = !"false".equals(System.getProperty("chat.history"));
+    static final int MAX_REPLAY = 500;
+
+    private static final File DIRECTORY = new File(System.getProperty("chat.history.dir", "chat-history"));
+    private static final int SEGMENT_SIZE = Integer.getInteger("chat.history.segment.bytes", 64 << 20);
+    private static final long RETAIN_BYTES = Long.getLong("chat.history.retain.bytes", 1L << 30);
+    private static final long RETAIN_MILLIS = TimeUnit.HOURS.toMillis(Long.getLong("chat.history.retain.hours", 24 * 7));
+    // A quiet server rolls no segments over, so the writer also checks their age this often.
+    private static final long RETENTION_CHECK_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int INDEX_INTERVAL = 4096;
+    private static final int RECORD_HEADER = 4 + 8 + 8 + 2;
+
+    static final class Entry {
+        final long id;
+        final long time;
+        final String room;
+        final String text;
+
+        Entry(long id, long time, String room, String text) {
+            this.id = id;
+            this.time = time;
+            this.room = room;
+            this.text = text;
+        }
+    }
+
+    private final AtomicLong lastAssignedId = new AtomicLong();
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writerParked = new AtomicBoolean();
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final ExecutorService readers = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "chat-history-reader");
+        t.setDaemon(true);
+        return t;
+    });
+    private Thread writer;
+    private volatile boolean stopping;
+
+    MessageLog() {
+        if (!ENABLED) return;
+        try {
+            recover();
+        } catch (IOException e) {
+            System.err.println("Could not open message history in " + DIRECTORY + ": " + e.getMessage());
+            return;
+        }
+        writer = new Thread(this::writeLoop, "chat-history-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+    }
+
+    /**
+     * Gives the message the next id and queues it for the log. Cheap enough to call from
+     * the broadcast path: no I/O and no locks.
+     */
+    long append(String room, String text) {
+        long id = lastAssignedId.incrementAndGet();
+        if (writer == null) return id;
+        pending.add(new Entry(id, System.currentTimeMillis(), room, text));
+        if (writerParked.get()) {
+            LockSupport.unpark(writer);
+        }
+        return id;
+    }
+
+    /** Runs a replay off the broadcast path. */
+    void replay(Runnable task) {
+        readers.execute(task);
+    }
+
+    /** The last limit entries of a room, oldest first. */
+    List<Entry> recent(String room, int limit) {
+        ArrayDeque<Entry> newest = new ArrayDeque<>();
+        List<Segment> snapshot = new ArrayList<>(segments);
+        for (int s = snapshot.size() - 1; s >= 0 && newest.size() < limit; s--) {
+            Segment segment = snapshot.get(s);
+            int checkpoints = segment.checkpoints;
+            int to = segment.end;
+            // Walk the segment backwards one index interval at a time.
+            for (int c = checkpoints - 1; c >= 0 && newest.size() < limit; c--) {
+                int from = segment.checkpointPositions[c];
+                List<Entry> chunk = segment.read(from, to, room, Long.MIN_VALUE, Integer.MAX_VALUE);
+                for (int i = chunk.size() - 1; i >= 0 && newest.size() < limit; i--) {
+                    newest.addFirst(chunk.get(i));
+                }
+                to = from;
+            }
+        }
+        return new ArrayList<>(newest);
+    }
+
+    /**
+     * Up to limit entries of a room (of every room if null) with an id greater than afterId,
+     * oldest first.
+     */
+    List<Entry> since(String room, long afterId, int limit) {
+        List<Entry> result = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.lastId <= afterId) continue;
+            int from = segment.positionBefore(afterId + 1);
+            result.addAll(segment.read(from, segment.end, room, afterId, limit - result.size()));
+            if (result.size() >= limit) break;
+        }
+        return result;
+    }
+
+    /** The entry with this id, or null if it was never logged or has expired. */
+    Entry get(long id) {
+        List<Segment> snapshot = new ArrayList<>(segments);
+        for (int s = snapshot.size() - 1; s >= 0; s--) {
+            Segment segment = snapshot.get(s);
+            if (segment.baseId <= id) {
+                return id <= segment.lastId ? segment.find(id) : null;
+            }
+        }
+        return null;
+    }
+
+    /** Id of the oldest entry still kept; ids below it are gone. */
+    long firstId() {
+        List<Segment> snapshot = new ArrayList<>(segments);
+        return snapshot.isEmpty() ? lastAssignedId.get() + 1 : snapshot.get(0).baseId;
+    }
+
+    long lastId() {
+        return lastAssignedId.get();
+    }
+
+    private void writeLoop() {
+        PriorityQueue<Entry> outOfOrder = new PriorityQueue<>(Comparator.comparingLong((Entry e) -> e.id));
+        long nextId = lastAssignedId.get() + 1;
+        long nextRetentionCheck = System.nanoTime() + RETENTION_CHECK_NANOS;
+        while (true) {
+            long now = System.nanoTime();
+            if (now - nextRetentionCheck >= 0) {
+                enforceRetention();
+                nextRetentionCheck = now + RETENTION_CHECK_NANOS;
+            }
+            Entry entry = pending.poll();
+            if (entry == null) {
+                if (stopping) return;
+                writerParked.set(true);
+                if (pending.isEmpty()) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+                }
+                writerParked.set(false);
+                continue;
+            }
+            // Ids are taken before entries are queued, so two broadcasters can queue them
+            // out of order; hold early arrivals until the gap is filled.
+            outOfOrder.add(entry);
+            while (!outOfOrder.isEmpty() && outOfOrder.peek().id == nextId) {
+                try {
+                    write(outOfOrder.poll());
+                } catch (IOException e) {
+                    System.err.println("Message history write failed: " + e.getMessage());
+                }
+                nextId++;
+            }
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        byte[] room = entry.room.getBytes(StandardCharsets.UTF_8);
+        byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER + room.length + text.length;
+        if (length + 4 > SEGMENT_SIZE) {
+            System.err.println("Message " + entry.id + " is too large for the history log");
+            return;
+        }
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        // Keep four zero bytes after every record so readers always find the end marker.
+        if (active == null || active.end + length + 4 > SEGMENT_SIZE) {
+            if (active != null) {
+                active.seal();
+            }
+            active = Segment.create(entry.id);
+            segments.add(active);
+            enforceRetention();
+        }
+        active.append(entry, room, text, length);
+    }
+
+    // Writer thread only, on rollover and every RETENTION_CHECK_NANOS. A segment's age is that
+    // of its newest record, taken from the records themselves: writes through the mapping
+    // don't reliably touch the file's mtime.
+    private void enforceRetention() {
+        long total = (long) segments.size() * SEGMENT_SIZE;
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            boolean tooOld = now - oldest.lastTime > RETAIN_MILLIS;
+            if (!tooOld && total <= RETAIN_BYTES) break;
+            segments.remove(0);
+            total -= SEGMENT_SIZE;
+            oldest.delete();
+        }
+    }
+
+    private void recover() throws IOException {
+        if (!DIRECTORY.isDirectory() && !DIRECTORY.mkdirs()) {
+            throw new IOException("cannot create directory");
+        }
+        File[] files = DIRECTORY.listFiles((dir, name) -> name.endsWith(".log"));
+        if (files == null) return;
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; i++) {
+            Segment segment = Segment.open(files[i], i == files.length - 1);
+            segments.add(segment);
+            lastAssignedId.set(Math.max(lastAssignedId.get(), segment.lastId));
+        }
+        if (!segments.isEmpty()) {
+            System.out.println("Message history recovered up to id " + lastAssignedId.get());
+        }
+    }
+
+    private void shutdown() {
+        stopping = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ignored) {}
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).force();
+        }
+    }
+
+    /**
+     * One mapped log file and its sparse index. Only the writer thread appends; readers
+     * look no further than end, which is published after each record is complete.
+     */
+    private static final class Segment {
+        final long baseId;
+        final File file;
+        final File indexFile;
+        final MappedByteBuffer buffer;
+        final FileChannel indexChannel;
+        volatile int end;
+        volatile long lastId;
+        // Time of the newest record, 0 while there is none; only the writer uses it.
+        long lastTime;
+        // Written by the writer before checkpoints is bumped; readers read checkpoints first.
+        long[] checkpointIds = new long[64];
+        int[] checkpointPositions = new int[64];
+        volatile int checkpoints;
+
+        private Segment(long baseId, File file, MappedByteBuffer buffer, FileChannel indexChannel) {
+            this.baseId = baseId;
+            this.file = file;
+            this.indexFile = new File(file.getParentFile(), String.format("%020d.idx", baseId));
+            this.buffer = buffer;
+            this.indexChannel = indexChannel;
+            this.lastId = baseId - 1;
+        }
+
+        static Segment create(long baseId) throws IOException {
+            File file = new File(DIRECTORY, String.format("%020d.log", baseId));
+            MappedByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            }
+            File index = new File(DIRECTORY, String.format("%020d.idx", baseId));
+            FileChannel indexChannel = new RandomAccessFile(index, "rw").getChannel();
+            indexChannel.truncate(0);
+            return new Segment(baseId, file, buffer, indexChannel);
+        }
+
+        static Segment open(File file, boolean active) throws IOException {
+            long baseId = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+            MappedByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file, active ? "rw" : "r")) {
+                long size = active ? SEGMENT_SIZE : raf.length();
+                buffer = raf.getChannel().map(active ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            File index = new File(file.getParentFile(), String.format("%020d.idx", baseId));
+            FileChannel indexChannel = active ? new RandomAccessFile(index, "rw").getChannel() : null;
+            Segment segment = new Segment(baseId, file, buffer, indexChannel);
+            segment.loadIndex(index);
+            segment.findEnd();
+            return segment;
+        }
+
+        // Reads the sparse index, dropping any checkpoint that points past valid data.
+        private void loadIndex(File index) throws IOException {
+            if (!index.isFile()) return;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+                for (long n = index.length() / 12; n > 0; n--) {
+                    long id = in.readLong();
+                    int position = in.readInt();
+                    if (position < 0 || position + 4 > buffer.capacity() || buffer.getInt(position) <= 0) break;
+                    addCheckpoint(id, position);
+                }
+            }
+            if (indexChannel != null) {
+                indexChannel.truncate(checkpoints * 12L);
+                indexChannel.position(checkpoints * 12L);
+            }
+        }
+
+        // Only the tail after the last checkpoint has to be scanned.
+        private void findEnd() {
+            int position = checkpoints == 0 ? 0 : checkpointPositions[checkpoints - 1];
+            int limit = buffer.capacity();
+            long last = baseId - 1;
+            long time = 0;
+            while (position + 4 <= limit) {
+                int length = buffer.getInt(position);
+                if (length < RECORD_HEADER - 4 || position + 4 + length > limit) break;
+                last = buffer.getLong(position + 4);
+                time = buffer.getLong(position + 12);
+                position += 4 + length;
+            }
+            lastId = last;
+            lastTime = time;
+            end = position;
+        }
+
+        void append(Entry entry, byte[] room, byte[] text, int length) throws IOException {
+            int position = end;
+            buffer.putLong(position + 4, entry.id);
+            buffer.putLong(position + 12, entry.time);
+            buffer.putShort(position + 20, (short) room.length);
+            ByteBuffer body = buffer.duplicate();
+            body.position(position + RECORD_HEADER);
+            body.put(room);
+            body.put(text);
+            // Length last: a crash mid-record leaves a zero length, which reads as the end.
+            buffer.putInt(position, length - 4);
+            if (checkpoints == 0 || position - checkpointPositions[checkpoints - 1] >= INDEX_INTERVAL) {
+                ByteBuffer index = ByteBuffer.allocate(12);
+                index.putLong(entry.id).putInt(position).flip();
+                indexChannel.write(index);
+                addCheckpoint(entry.id, position);
+            }
+            lastId = entry.id;
+            lastTime = entry.time;
+            end = position + length;
+        }
+
+        private void addCheckpoint(long id, int position) {
+            int n = checkpoints;
+            if (n == checkpointIds.length) {
+                checkpointIds = Arrays.copyOf(checkpointIds, n * 2);
+                checkpointPositions = Arrays.copyOf(checkpointPositions, n * 2);
+            }
+            checkpointIds[n] = id;
+            checkpointPositions[n] = position;
+            checkpoints = n + 1;
+        }
+
+        /** Position of the last checkpoint whose id is below the given id. */
+        int positionBefore(long id) {
+            int n = checkpoints;
+            long[] ids = checkpointIds;
+            int[] positions = checkpointPositions;
+            int low = 0;
+            int high = n - 1;
+            int found = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (ids[mid] < id) {
+                    found = positions[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        List<Entry> read(int from, int to, String room, long afterId, int limit) {
+            List<Entry> entries = new ArrayList<>();
+            ByteBuffer view = buffer.duplicate();
+            int position = from;
+            while (position < to && entries.size() < limit) {
+                int length = view.getInt(position);
+                if (length <= 0) break;
+                long id = view.getLong(position + 4);
+                int roomLength = view.getShort(position + 20);
+                byte[] roomBytes = new byte[roomLength];
+                view.position(position + RECORD_HEADER);
+                view.get(roomBytes);
+                String entryRoom = new String(roomBytes, StandardCharsets.UTF_8);
+                if (id > afterId && (room == null || entryRoom.equals(room))) {
+                    byte[] text = new byte[length - (RECORD_HEADER - 4) - roomLength];
+                    view.get(text);
+                    entries.add(new Entry(id, view.getLong(position + 12), entryRoom,
+                            new String(text, StandardCharsets.UTF_8)));
+                }
+                position += 4 + length;
+            }
+            return entries;
+        }
+
+        // At most INDEX_INTERVAL bytes are scanned from the checkpoint before the id.
+        Entry find(long id) {
+            ByteBuffer view = buffer.duplicate();
+            int position = positionBefore(id + 1);
+            int to = end;
+            while (position < to) {
+                int length = view.getInt(position);
+                if (length <= 0) break;
+                long entryId = view.getLong(position + 4);
+                if (entryId == id) {
+                    List<Entry> found = read(position, position + 4 + length, null, id - 1, 1);
+                    return found.isEmpty() ? null : found.get(0);
+                }
+                if (entryId > id) break;
+                position += 4 + length;
+            }
+            return null;
+        }
+
+        void seal() {
+            force();
+            try {
+                indexChannel.close();
+            } catch (IOException ignored) {}
+        }
+
+        void force() {
+            buffer.force();
+            try {
+                if (indexChannel != null && indexChannel.isOpen()) indexChannel.force(false);
+            } catch (IOException ignored) {}
+        }
+
+        void delete() {
+            // The mapping itself goes away when the buffer is collected.
+            if (!file.delete() || !indexFile.delete()) {
+                System.err.println("Could not delete expired history segment " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,361 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Selector based server mode. One acceptor hands new sockets to a small, fixed set of
+ * event loops; each loop owns its selector and does all reads and writes for its
+ * connections without blocking. The line protocol is the same as the blocking mode,
+ * so existing clients connect unchanged.
+ */
+class NioChatServer {
+    static final int DEFAULT_EVENT_LOOPS =
+            Integer.getInteger("chat.nio.loops", Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_WRITE_BATCH = 64;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private int nextLoop;
+
+    NioChatServer(int port, int eventLoops) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "chat-event-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                loop.register(new Connection(channel, loop));
+            }
+        }
+    }
+
+    private static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Connection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingFlushes = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingResumes = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        // Shared by every connection on this loop: queued messages are copied in and written
+        // straight from here, so nothing is allocated per recipient.
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(Connection connection) {
+            pendingRegistrations.add(connection);
+            selector.wakeup();
+        }
+
+        void scheduleFlush(Connection connection) {
+            pendingFlushes.add(connection);
+            selector.wakeup();
+        }
+
+        void scheduleResume(Connection connection) {
+            pendingResumes.add(connection);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                    continue;
+                }
+
+                Connection connection;
+                while ((connection = pendingRegistrations.poll()) != null) {
+                    connection.register(selector);
+                }
+                while ((connection = pendingFlushes.poll()) != null) {
+                    connection.flush();
+                }
+                while ((connection = pendingResumes.poll()) != null) {
+                    connection.resume();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection c = (Connection) key.attachment();
+                    if (!key.isValid()) {
+                        c.handler.close();
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            c.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            c.flush();
+                        }
+                    } catch (CancelledKeyException e) {
+                        c.handler.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-socket state. Everything except flushOutbound(), resumeReading() and close() runs on
+     * the owning event loop.
+     */
+    private static final class Connection implements ChatTransport {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final ClientHandler handler;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        // Set while a timer is due to resume a download held back by the transfer rate.
+        private final AtomicBoolean pacing = new AtomicBoolean();
+        // Messages taken off the queue but not fully written yet, and how far into them we are.
+        private final List<OutboundMessage> batch = new ArrayList<>(MAX_WRITE_BATCH);
+        private int batchIndex;
+        private int batchOffset;
+        private int batchFormat;
+        private final InboundDecoder decoder;
+        // What was read after a frame that paused reading, to be fed once it resumes.
+        private ByteBuffer held;
+        private SelectionKey key;
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.handler = new ClientHandler(this);
+            this.decoder = new InboundDecoder(handler);
+        }
+
+        void register(Selector selector) {
+            try {
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            ChatServer.addClient(handler);
+            handler.start();
+        }
+
+        public void flushOutbound() {
+            if (!closed && flushScheduled.compareAndSet(false, true)) {
+                loop.scheduleFlush(this);
+            }
+        }
+
+        void read(ByteBuffer buffer) {
+            int n;
+            do {
+                buffer.clear();
+                try {
+                    n = channel.read(buffer);
+                } catch (IOException e) {
+                    System.err.println("Connection error with user " + handler.getUsername());
+                    handler.close();
+                    return;
+                }
+                if (n < 0) {
+                    handler.close();
+                    return;
+                }
+                ChatServer.metrics.bytesIn.add(n);
+                buffer.flip();
+                if (!feed(buffer)) return;
+                if (handler.readingPaused()) {
+                    // The read buffer is shared by the loop, so keep a copy of the rest.
+                    if (buffer.hasRemaining()) {
+                        held = ByteBuffer.allocate(buffer.remaining()).put(buffer);
+                        held.flip();
+                    }
+                    return;
+                }
+            } while (n == buffer.capacity());
+        }
+
+        private boolean feed(ByteBuffer buffer) {
+            if (!decoder.feed(buffer) || closed) {
+                handler.close();
+                return false;
+            }
+            return true;
+        }
+
+        public void pauseReading() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        public void resumeReading() {
+            if (!closed) {
+                loop.scheduleResume(this);
+            }
+        }
+
+        // On the loop. A resume can arrive after reading was paused again for the next frame,
+        // in which case that frame's own resume follows.
+        void resume() {
+            if (closed || !key.isValid() || handler.readingPaused()) return;
+            try {
+                ByteBuffer pending = held;
+                if (pending != null) {
+                    held = null;
+                    if (!feed(pending)) return;
+                    if (handler.readingPaused()) {
+                        held = pending.hasRemaining() ? pending : null;
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            } catch (CancelledKeyException e) {
+                handler.close();
+            }
+        }
+
+        void flush() {
+            if (key == null) {
+                // Not registered yet; the registration pass will get to it.
+                loop.scheduleFlush(this);
+                return;
+            }
+            if (!key.isValid()) return;
+            OutboundQueue outbound = handler.outbound();
+            ByteBuffer buffer = loop.writeBuffer;
+            try {
+                while (true) {
+                    Attachments.Download download = handler.nextDownload();
+                    if (download != null && download.midFrame()) {
+                        // A chunk is partly on the wire; nothing else can go out until it's done.
+                        if (!writeDownload(download)) return;
+                        continue;
+                    }
+                    if (batchIndex == batch.size()) {
+                        batch.clear();
+                        batchIndex = 0;
+                        batchOffset = 0;
+                        int n = outbound.drainTo(batch, MAX_WRITE_BATCH);
+                        if (n < 0) {
+                            handler.close();
+                            return;
+                        }
+                        if (n == 0) {
+                            // No messages waiting, so the socket is free for a download chunk.
+                            if (download == null) break;
+                            long delay = handler.downloadDelay(download, System.nanoTime());
+                            if (delay > 0) {
+                                pace(delay);
+                                break;
+                            }
+                            if (!writeDownload(download)) return;
+                            continue;
+                        }
+                        ChatServer.metrics.messagesOut.add(n);
+                        batchFormat = handler.format();
+                    }
+                    buffer.clear();
+                    fill(buffer);
+                    buffer.flip();
+                    int written = channel.write(buffer);
+                    ChatServer.metrics.bytesOut.add(written);
+                    advance(written);
+                    if (buffer.hasRemaining()) {
+                        // Socket buffer is full: wait for OP_WRITE instead of spinning.
+                        handler.writeBlocked(written > 0);
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                handler.writeUnblocked();
+                flushScheduled.set(false);
+                if (!outbound.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+                    loop.scheduleFlush(this);
+                }
+            } catch (IOException | CancelledKeyException e) {
+                handler.close();
+            }
+        }
+
+        // Sends the download's next frame, or the rest of it, with transferTo from the file
+        // straight to the socket. Returns false if the socket filled up before the frame was done.
+        private boolean writeDownload(Attachments.Download download) throws IOException {
+            long written = download.writeTo(channel);
+            ChatServer.metrics.bytesOut.add(written);
+            if (download.midFrame()) {
+                handler.writeBlocked(written > 0);
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return false;
+            }
+            handler.downloadWritten(download);
+            return true;
+        }
+
+        private void pace(long delayNanos) {
+            if (pacing.compareAndSet(false, true)) {
+                ChatServer.timers.schedule(() -> {
+                    pacing.set(false);
+                    flushOutbound();
+                }, delayNanos);
+            }
+        }
+
+        private void fill(ByteBuffer buffer) {
+            int index = batchIndex;
+            int offset = batchOffset;
+            while (index < batch.size() && buffer.hasRemaining()) {
+                byte[] bytes = batch.get(index).bytes(batchFormat);
+                int length = Math.min(bytes.length - offset, buffer.remaining());
+                buffer.put(bytes, offset, length);
+                offset += length;
+                if (offset == bytes.length) {
+                    index++;
+                    offset = 0;
+                }
+            }
+        }
+
+        private void advance(int written) {
+            while (written > 0) {
+                int left = batch.get(batchIndex).bytes(batchFormat).length - batchOffset;
+                if (written < left) {
+                    batchOffset += written;
+                    return;
+                }
+                written -= left;
+                batchIndex++;
+                batchOffset = 0;
+            }
+        }
+
+        public void close() {
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
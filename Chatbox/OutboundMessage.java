@@ -0,0 +1,202 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+
+/**
+ * A message waiting to go out. A broadcast builds one of these and every recipient's
+ * queue holds a reference to it, so fan-out to N clients costs one encoding per wire
+ * format instead of N. Encodings are built on first use and never modified afterwards;
+ * that includes the deflated one, so a large broadcast is compressed once, not once per
+ * recipient.
+ */
+final class OutboundMessage {
+    /** One text line per message. */
+    static final int LINE = 0;
+    /** Binary frames. */
+    static final int FRAME = 1;
+    /** Binary frames, deflated when the payload is at least COMPRESS_THRESHOLD bytes. */
+    static final int DEFLATE = 2;
+
+    /** Heartbeat frames; only ever sent to framed clients. */
+    static final OutboundMessage PING = new OutboundMessage(Frame.PING, 0, "", false, false, null);
+    static final OutboundMessage PONG = new OutboundMessage(Frame.PONG, 0, "", false, false, null);
+
+    static final int COMPRESS_THRESHOLD = Integer.getInteger("chat.compress.threshold", 512);
+    private static final int COMPRESS_LEVEL = Integer.getInteger("chat.compress.level", Deflater.BEST_SPEED);
+    // A Deflater holds a few hundred KB of native memory, so writers borrow one from a small
+    // pool instead of keeping one each.
+    private static final int MAX_POOLED_DEFLATERS = 2 * Runtime.getRuntime().availableProcessors();
+    private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    // Text clients read lines through an InputStreamReader on the platform charset.
+    private static final Charset LINE_CHARSET = Charset.defaultCharset();
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final byte type;
+    private final long id;
+    private final String text;
+    private final boolean handshake;
+    // Only room messages; see broadcast().
+    private final boolean droppable;
+    // Set for a batch: sent back to back, and deflated together as one BATCH frame.
+    private final OutboundMessage[] parts;
+    private volatile byte[] lineBytes;
+    private volatile byte[] frameBytes;
+    private volatile byte[] deflatedBytes;
+
+    private OutboundMessage(byte type, long id, String text, boolean handshake, boolean droppable,
+                            OutboundMessage[] parts) {
+        this.type = type;
+        this.id = id;
+        this.text = text;
+        this.handshake = handshake;
+        this.droppable = droppable;
+        this.parts = parts;
+    }
+
+    static OutboundMessage of(String text) {
+        return new OutboundMessage(Frame.TEXT, 0, text, false, false, null);
+    }
+
+    /**
+     * A message from the history log; framed clients also get its id, and a shared file as a
+     * FILE frame rather than as text.
+     */
+    static OutboundMessage logged(long id, String text) {
+        if (Attachments.isAnnouncement(text)) {
+            return new OutboundMessage(Frame.FILE, id, text, false, false, null);
+        }
+        return new OutboundMessage(id == 0 ? Frame.TEXT : Frame.MESSAGE, id, text, false, false, null);
+    }
+
+    /**
+     * A room message fanned out to members. Unlike everything else queued for a client it may
+     * be dropped by the slow-consumer policy; a shared file's announcement may not, as it is
+     * the only way the room learns of the file.
+     */
+    static OutboundMessage broadcast(long id, String text) {
+        if (Attachments.isAnnouncement(text)) {
+            return logged(id, text);
+        }
+        return new OutboundMessage(id == 0 ? Frame.TEXT : Frame.MESSAGE, id, text, false, true, null);
+    }
+
+    /** A handshake reply: always sent as a text line, even once the client has switched to frames. */
+    static OutboundMessage handshake(String text) {
+        return new OutboundMessage(Frame.TEXT, 0, text, true, false, null);
+    }
+
+    /** A frame with an already encoded payload, such as an UPLOAD_ACK; framed clients only. */
+    static OutboundMessage control(byte type, byte[] payload) {
+        OutboundMessage message = new OutboundMessage(type, 0, null, false, false, null);
+        message.frameBytes = Frame.encode(type, payload);
+        message.deflatedBytes = message.frameBytes;
+        return message;
+    }
+
+    /** Several messages queued as one, such as a history replay, so they compress as a whole. */
+    static OutboundMessage batch(List<OutboundMessage> messages) {
+        return new OutboundMessage(Frame.BATCH, 0, null, false, false, messages.toArray(new OutboundMessage[0]));
+    }
+
+    String text() {
+        return text;
+    }
+
+    boolean droppable() {
+        return droppable;
+    }
+
+    byte[] bytes(int format) {
+        if (handshake || format == LINE) {
+            return lineBytes();
+        }
+        if (format == FRAME) {
+            return frameBytes();
+        }
+        byte[] bytes = deflatedBytes;
+        if (bytes == null) {
+            bytes = parts == null
+                    ? deflate(type, payload())
+                    : deflate(Frame.BATCH, frameBytes());
+            if (bytes == null) {
+                bytes = frameBytes();
+            }
+            deflatedBytes = bytes;
+        }
+        return bytes;
+    }
+
+    private byte[] lineBytes() {
+        byte[] bytes = lineBytes;
+        if (bytes == null) {
+            bytes = parts == null ? (Attachments.shownText(text) + LINE_SEPARATOR).getBytes(LINE_CHARSET) : concat(LINE);
+            lineBytes = bytes;
+        }
+        return bytes;
+    }
+
+    private byte[] frameBytes() {
+        byte[] bytes = frameBytes;
+        if (bytes == null) {
+            bytes = parts == null ? Frame.encode(type, payload()) : concat(FRAME);
+            frameBytes = bytes;
+        }
+        return bytes;
+    }
+
+    private byte[] payload() {
+        if (type == Frame.FILE) return Attachments.announcementPayload(id, text);
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        if (type != Frame.MESSAGE) return utf8;
+        return ByteBuffer.allocate(8 + utf8.length).putLong(id).put(utf8).array();
+    }
+
+    private byte[] concat(int format) {
+        int length = 0;
+        for (OutboundMessage part : parts) {
+            length += part.bytes(format).length;
+        }
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (OutboundMessage part : parts) {
+            byte[] encoded = part.bytes(format);
+            System.arraycopy(encoded, 0, bytes, position, encoded.length);
+            position += encoded.length;
+        }
+        return bytes;
+    }
+
+    // A frame of the given type with its payload deflated, or null when the payload is
+    // under the threshold or doesn't get any smaller.
+    private static byte[] deflate(byte type, byte[] payload) {
+        if (payload.length < COMPRESS_THRESHOLD) return null;
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(COMPRESS_LEVEL);
+        }
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            byte[] compressed = new byte[payload.length];
+            int length = 0;
+            while (!deflater.finished() && length < compressed.length) {
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            if (!deflater.finished()) return null;
+            return Frame.encode((byte) (type | Frame.DEFLATED), Arrays.copyOf(compressed, length));
+        } finally {
+            deflater.reset();
+            if (deflaters.size() < MAX_POOLED_DEFLATERS) {
+                deflaters.offer(deflater);
+            } else {
+                deflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of messages waiting to be written to one client. Any thread may offer;
+ * only that client's writer drains it. Offering never blocks: when the queue is full the
+ * slow-consumer policy decides what gives way. Only room broadcasts ever give way; acks,
+ * replies and announcements that share the queue are always kept, and a client whose queue is
+ * full of those is disconnected instead.
+ */
+final class OutboundQueue {
+    enum SlowConsumerPolicy {
+        /** Drop the oldest queued broadcast to make room for the new message. */
+        DROP_OLDEST,
+        /** Throw away every queued broadcast and tell the client how much it missed. */
+        COALESCE,
+        /** Give up on the client; its writer closes the connection. */
+        DISCONNECT;
+
+        static SlowConsumerPolicy parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    static final int DEFAULT_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    static final SlowConsumerPolicy DEFAULT_POLICY =
+            SlowConsumerPolicy.parse(System.getProperty("chat.outbound.policy", "drop-oldest"));
+
+    private final Object[] ring;
+    private final SlowConsumerPolicy policy;
+    // A j.u.c lock rather than synchronized, so a virtual-thread writer holding it
+    // doesn't pin its carrier.
+    private final ReentrantLock lock = new ReentrantLock();
+    private int head;
+    private int size;
+    private long skipped;
+    private long dropped;
+    private boolean overflowed;
+    private boolean closed;
+
+    OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        this.ring = new Object[capacity];
+        this.policy = policy;
+    }
+
+    void offer(OutboundMessage message) {
+        lock.lock();
+        try {
+            if (closed || overflowed) return;
+            if (size == ring.length) {
+                int removed;
+                switch (policy) {
+                    case DROP_OLDEST:
+                        removed = removeOldestDroppable();
+                        break;
+                    case COALESCE:
+                        removed = removeDroppable();
+                        skipped += removed;
+                        break;
+                    default:
+                        overflowed = true;
+                        return;
+                }
+                dropped += removed;
+                if (removed == 0) {
+                    // Nothing queued may go: a broadcast gives way itself, anything else
+                    // can't be lost, so the client is let go
+                    if (message.droppable()) {
+                        dropped++;
+                        if (policy == SlowConsumerPolicy.COALESCE) {
+                            skipped++;
+                        }
+                    } else {
+                        overflowed = true;
+                    }
+                    return;
+                }
+            }
+            ring[(head + size) % ring.length] = message;
+            size++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Removes the broadcast nearest the head, moving the ones before it up; returns 1, or 0 if
+    // nothing queued may be dropped
+    private int removeOldestDroppable() {
+        for (int i = 0; i < size; i++) {
+            if (!at(i).droppable()) continue;
+            for (int j = i; j > 0; j--) {
+                ring[(head + j) % ring.length] = ring[(head + j - 1) % ring.length];
+            }
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size--;
+            return 1;
+        }
+        return 0;
+    }
+
+    // Removes every broadcast, keeping the rest in order; returns how many went
+    private int removeDroppable() {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            OutboundMessage queued = at(i);
+            if (!queued.droppable()) {
+                ring[(head + kept++) % ring.length] = queued;
+            }
+        }
+        for (int i = kept; i < size; i++) {
+            ring[(head + i) % ring.length] = null;
+        }
+        int removed = size - kept;
+        size = kept;
+        return removed;
+    }
+
+    private OutboundMessage at(int i) {
+        return (OutboundMessage) ring[(head + i) % ring.length];
+    }
+
+    /**
+     * Moves up to max queued messages into batch without waiting. Returns how many were
+     * moved, or -1 if the queue is closed or the client fell too far behind to keep.
+     */
+    int drainTo(List<OutboundMessage> batch, int max) {
+        lock.lock();
+        try {
+            return drainLocked(batch, max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int drainLocked(List<OutboundMessage> batch, int max) {
+        if (closed || overflowed) return -1;
+        int n = 0;
+        if (skipped > 0) {
+            batch.add(OutboundMessage.of("*** " + skipped + " messages skipped, connection too slow ***"));
+            skipped = 0;
+            n++;
+        }
+        while (size > 0 && n < max) {
+            batch.add((OutboundMessage) ring[head]);
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size--;
+            n++;
+        }
+        return n;
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return size == 0 && skipped == 0 && !overflowed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            Arrays.fill(ring, null);
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
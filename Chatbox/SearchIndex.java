@@ -0,0 +1,618 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index over the message history for "/search". Every word of a chat message, its
+ * sender and its room map to a posting list of message ids; a query intersects the lists it
+ * names and fetches only the matching messages from the log. Ids are handed out in time
+ * order, so "since:" becomes a lower bound on the id through a table of the first id of
+ * every hour.
+ *
+ * One thread follows the log and indexes whatever was written since it last looked, so
+ * broadcasting never waits for it and new messages become searchable a moment later. The
+ * index is saved to "search.index" (in -Dchat.search.dir, by default the history directory)
+ * every -Dchat.search.snapshot.seconds and on shutdown; a restart loads it and only indexes
+ * what the log gained since.
+ */
+final class SearchIndex {
+    static final int PAGE_SIZE = 10;
+
+    private static final File FILE = new File(System.getProperty("chat.search.dir",
+            System.getProperty("chat.history.dir", "chat-history")), "search.index");
+    private static final long SNAPSHOT_NANOS = Long.getLong("chat.search.snapshot.seconds", 300) * 1_000_000_000L;
+    private static final int FILE_MAGIC = 0x43534958; // "CSIX"
+    private static final int FILE_VERSION = 1;
+    private static final int INDEX_BATCH = 1024;
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_TERM_LENGTH = 32;
+    // A query gives up after this many steps of intersecting, so a search for common words that
+    // rarely appear together can't take long; the reply then asks for a narrower search.
+    private static final int MAX_STEPS = 200_000;
+    // "[timestamp] sender: text"; a shared file reads "[timestamp] sender shared a file: name".
+    private static final Pattern CHAT_LINE = Pattern.compile("\\[[^\\]]*\\] (.+?)( shared a file)?: (.*)", Pattern.DOTALL);
+    private static final Pattern RELATIVE_TIME = Pattern.compile("(\\d+)([mhdw])");
+
+    private final MessageLog log;
+    // Keys are "w:" + word, "u:" + lower-cased sender and "r:" + room.
+    private final Map<String, PostingList> postings = new HashMap<>();
+    // First id seen in each hour, by hour since the epoch.
+    private long[] bucketHours = new long[64];
+    private long[] bucketFirstIds = new long[64];
+    private int buckets;
+    private long lastIndexedId;
+    private volatile boolean dirty;
+    // Queries share the read lock; the indexer takes the write lock once per batch.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** A parsed "/search" request. */
+    static final class Query {
+        final List<String> terms;
+        final String from;
+        final long sinceMillis;
+        final int page;
+
+        Query(List<String> terms, String from, long sinceMillis, int page) {
+            this.terms = terms;
+            this.from = from;
+            this.sinceMillis = sinceMillis;
+            this.page = page;
+        }
+
+        /**
+         * Parses "&lt;words&gt; [from:user] [since:time] [page:n]", where time is 30m, 12h, 7d,
+         * 2w, a date (2025-11-07) or a date and time (2025-11-07T16:00).
+         */
+        static Query parse(String args, long now) {
+            Set<String> terms = new LinkedHashSet<>();
+            String from = null;
+            long since = Long.MIN_VALUE;
+            int page = 1;
+            for (String token : args.trim().split("\\s+")) {
+                String lower = token.toLowerCase();
+                if (lower.startsWith("from:") && token.length() > 5) {
+                    from = token.substring(5);
+                } else if (lower.startsWith("since:")) {
+                    since = parseTime(lower.substring(6), now);
+                } else if (lower.startsWith("page:")) {
+                    try {
+                        page = Integer.parseInt(token.substring(5));
+                    } catch (NumberFormatException e) {
+                        page = 0;
+                    }
+                    if (page < 1) throw new IllegalArgumentException("Pages start at 1");
+                } else {
+                    tokenize(token, terms);
+                }
+            }
+            if (terms.isEmpty() && from == null) {
+                throw new IllegalArgumentException("Usage: /search <words> [from:user] [since:time] [page:n]");
+            }
+            return new Query(new ArrayList<>(terms), from, since, page);
+        }
+
+        private static long parseTime(String text, long now) {
+            Matcher relative = RELATIVE_TIME.matcher(text);
+            if (relative.matches()) {
+                long amount = Long.parseLong(relative.group(1));
+                switch (relative.group(2)) {
+                    case "m": return now - TimeUnit.MINUTES.toMillis(amount);
+                    case "h": return now - TimeUnit.HOURS.toMillis(amount);
+                    case "d": return now - TimeUnit.DAYS.toMillis(amount);
+                    default: return now - TimeUnit.DAYS.toMillis(7 * amount);
+                }
+            }
+            try {
+                if (text.contains("t")) {
+                    return LocalDateTime.parse(text.toUpperCase()).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                }
+                return LocalDate.parse(text).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("since: takes 30m, 12h, 7d, 2w, a date like 2025-11-07 or 2025-11-07T16:00");
+            }
+        }
+    }
+
+    /** Matching ids, newest first. */
+    static final class Result {
+        final long[] ids;
+        final boolean more;
+        // The search gave up before finding everything it was asked for.
+        final boolean truncated;
+
+        Result(long[] ids, boolean more, boolean truncated) {
+            this.ids = ids;
+            this.more = more;
+            this.truncated = truncated;
+        }
+    }
+
+    /** Indexes the given log as it grows; with null, only what is passed to index(). */
+    SearchIndex(MessageLog log) {
+        this.log = log;
+        if (log == null || !MessageLog.ENABLED) return;
+        load();
+        Thread indexer = new Thread(this::indexLoop, "chat-search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::save));
+    }
+
+    boolean isEnabled() {
+        return log == null || MessageLog.ENABLED;
+    }
+
+    /** Adds log entries, which must come in id order. */
+    void index(List<MessageLog.Entry> entries) {
+        Set<String> words = new LinkedHashSet<>();
+        lock.writeLock().lock();
+        try {
+            for (MessageLog.Entry entry : entries) {
+                if (entry.id <= lastIndexedId) continue;
+                lastIndexedId = entry.id;
+                dirty = true;
+                Matcher line = CHAT_LINE.matcher(Attachments.shownText(entry.text));
+                if (!line.matches()) continue; // join and leave notices
+                long hour = entry.time / HOUR_MILLIS;
+                if (buckets == 0 || hour > bucketHours[buckets - 1]) {
+                    if (buckets == bucketHours.length) {
+                        bucketHours = Arrays.copyOf(bucketHours, buckets * 2);
+                        bucketFirstIds = Arrays.copyOf(bucketFirstIds, buckets * 2);
+                    }
+                    bucketHours[buckets] = hour;
+                    bucketFirstIds[buckets] = entry.id;
+                    buckets++;
+                }
+                post("r:" + entry.room, entry.id);
+                post("u:" + line.group(1).toLowerCase(), entry.id);
+                words.clear();
+                tokenize(line.group(3), words);
+                for (String word : words) {
+                    post("w:" + word, entry.id);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void post(String key, long id) {
+        PostingList list = postings.get(key);
+        if (list == null) {
+            list = new PostingList();
+            postings.put(key, list);
+        }
+        list.add(id);
+    }
+
+    // Lower-cased runs of letters and digits; longer ones are left out rather than cut. The set
+    // drops repeats, in order of first use.
+    private static void tokenize(String text, Set<String> words) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    words.add(text.substring(start, i).toLowerCase());
+                }
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Ids of the messages in the room that match the query, newest first: the given page of
+     * PAGE_SIZE, and whether there are more after it.
+     */
+    Result search(String room, Query query) {
+        List<String> keys = new ArrayList<>();
+        keys.add("r:" + room);
+        if (query.from != null) {
+            keys.add("u:" + query.from.toLowerCase());
+        }
+        for (String term : query.terms) {
+            keys.add("w:" + term);
+        }
+        int skip = (query.page - 1) * PAGE_SIZE;
+        lock.readLock().lock();
+        try {
+            PostingList.Cursor[] cursors = new PostingList.Cursor[keys.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                PostingList list = postings.get(keys.get(i));
+                if (list == null) return new Result(new long[0], false, false);
+                cursors[i] = list.cursor();
+            }
+            // The shortest list proposes candidates, the others confirm or skip ahead.
+            Arrays.sort(cursors, Comparator.comparingInt(PostingList.Cursor::size));
+            // "since:" stops the walk at the first id of its hour. Only that hour mixes older and
+            // newer messages, so ids from there up to the next hour's first have their time
+            // checked in the log before they count towards the page.
+            long minId = 0;
+            long exactFrom = 0;
+            if (query.sinceMillis != Long.MIN_VALUE) {
+                int bucket = firstBucketSince(query.sinceMillis);
+                minId = bucket < buckets ? bucketFirstIds[bucket] : Long.MAX_VALUE;
+                exactFrom = minId;
+                if (bucket < buckets && bucketHours[bucket] == hourOf(query.sinceMillis)) {
+                    exactFrom = bucket + 1 < buckets ? bucketFirstIds[bucket + 1] : Long.MAX_VALUE;
+                }
+            }
+            long[] ids = new long[PAGE_SIZE];
+            int found = 0;
+            int matched = 0;
+            long candidate = Long.MAX_VALUE;
+            for (int steps = 0; ; steps++) {
+                if (steps == MAX_STEPS) {
+                    return new Result(Arrays.copyOf(ids, found), false, true);
+                }
+                candidate = cursors[0].floor(candidate);
+                if (candidate < minId) break;
+                boolean all = true;
+                for (int i = 1; i < cursors.length && all; i++) {
+                    long id = cursors[i].floor(candidate);
+                    if (id != candidate) {
+                        candidate = id;
+                        all = false;
+                    }
+                }
+                if (candidate < minId) break;
+                if (!all) continue;
+                if (candidate < exactFrom && !writtenSince(candidate, query.sinceMillis)) {
+                    candidate--;
+                    continue;
+                }
+                if (matched++ >= skip) {
+                    if (found == PAGE_SIZE) {
+                        return new Result(ids, true, false);
+                    }
+                    ids[found++] = candidate;
+                }
+                candidate--;
+            }
+            return new Result(Arrays.copyOf(ids, found), false, false);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The first hour bucket at or after the time's hour, or buckets if there is none.
+    private int firstBucketSince(long millis) {
+        long hour = hourOf(millis);
+        int low = 0;
+        int high = buckets;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (bucketHours[mid] < hour) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long hourOf(long millis) {
+        return Math.floorDiv(millis, HOUR_MILLIS);
+    }
+
+    // Without a log to look in, the hour is as exact as it gets.
+    private boolean writtenSince(long id, long millis) {
+        if (log == null) return true;
+        MessageLog.Entry entry = log.get(id);
+        return entry != null && entry.time >= millis;
+    }
+
+    private void indexLoop() {
+        long lastSave = System.nanoTime();
+        while (true) {
+            List<MessageLog.Entry> entries = log.since(null, lastIndexedId, INDEX_BATCH);
+            if (!entries.isEmpty()) {
+                index(entries);
+            } else {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(200));
+            }
+            if (SNAPSHOT_NANOS > 0 && System.nanoTime() - lastSave >= SNAPSHOT_NANOS) {
+                save();
+                lastSave = System.nanoTime();
+            }
+        }
+    }
+
+    // Writes a new snapshot next to the old one and swaps it in, after dropping what the log
+    // no longer has. Only the pruning and a copy of the index happen under the lock, and the
+    // copy shares the posting lists' arrays, so it costs a few objects per key; the file is
+    // written and synced from the copy while queries and indexing carry on.
+    private synchronized void save() {
+        long indexedId;
+        long[] hours;
+        long[] firstIds;
+        Map<String, PostingList> lists;
+        lock.writeLock().lock();
+        try {
+            if (!dirty) return;
+            prune(log.firstId());
+            dirty = false;
+            indexedId = lastIndexedId;
+            hours = Arrays.copyOf(bucketHours, buckets);
+            firstIds = Arrays.copyOf(bucketFirstIds, buckets);
+            lists = new HashMap<>(postings.size() * 2);
+            for (Map.Entry<String, PostingList> posting : postings.entrySet()) {
+                lists.put(posting.getKey(), posting.getValue().snapshot());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        File temporary = new File(FILE.getPath() + ".tmp");
+        try {
+            try (FileOutputStream file = new FileOutputStream(temporary)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeLong(indexedId);
+                out.writeInt(hours.length);
+                for (int i = 0; i < hours.length; i++) {
+                    out.writeLong(hours[i]);
+                    out.writeLong(firstIds[i]);
+                }
+                out.writeInt(lists.size());
+                for (Map.Entry<String, PostingList> posting : lists.entrySet()) {
+                    out.writeUTF(posting.getKey());
+                    posting.getValue().writeTo(out);
+                }
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(temporary.toPath(), FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            System.err.println("Could not save the search index to " + FILE + ": " + e.getMessage());
+        }
+    }
+
+    private void prune(long firstId) {
+        Iterator<PostingList> lists = postings.values().iterator();
+        while (lists.hasNext()) {
+            if (!lists.next().dropBefore(firstId)) {
+                lists.remove();
+            }
+        }
+        int expired = 0;
+        while (expired + 1 < buckets && bucketFirstIds[expired + 1] <= firstId) {
+            expired++;
+        }
+        System.arraycopy(bucketHours, expired, bucketHours, 0, buckets - expired);
+        System.arraycopy(bucketFirstIds, expired, bucketFirstIds, 0, buckets - expired);
+        buckets -= expired;
+    }
+
+    // A missing, damaged or outdated snapshot only means indexing the log from the start.
+    private void load() {
+        if (!FILE.isFile()) return;
+        long started = System.nanoTime();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FILE), 1 << 16))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("unknown format");
+            }
+            long indexedId = in.readLong();
+            if (indexedId > log.lastId()) {
+                throw new IOException("it is newer than the message history");
+            }
+            int bucketCount = in.readInt();
+            long[] hours = new long[Math.max(64, bucketCount)];
+            long[] firstIds = new long[hours.length];
+            for (int i = 0; i < bucketCount; i++) {
+                hours[i] = in.readLong();
+                firstIds[i] = in.readLong();
+            }
+            Map<String, PostingList> lists = new HashMap<>();
+            for (int n = in.readInt(); n > 0; n--) {
+                lists.put(in.readUTF(), PostingList.readFrom(in));
+            }
+            postings.putAll(lists);
+            bucketHours = hours;
+            bucketFirstIds = firstIds;
+            buckets = bucketCount;
+            lastIndexedId = indexedId;
+            System.out.printf("Search index loaded up to id %d in %d ms%n",
+                    indexedId, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        } catch (IOException e) {
+            System.err.println("Ignoring search index " + FILE + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ascending message ids, compressed: blocks of BLOCK ids where the first is kept as is
+     * and the rest as variable-length deltas, usually a byte or two each. A cursor finds its
+     * block by binary search over the first ids and decodes only that block.
+     */
+    private static final class PostingList {
+        private static final int BLOCK = 128;
+
+        private byte[] data = new byte[8];
+        private int length;
+        private long[] blockFirstIds = new long[1];
+        private int[] blockOffsets = new int[1];
+        private int size;
+        private long last = -1;
+
+        void add(long id) {
+            if (id <= last) return;
+            if (size % BLOCK == 0) {
+                int block = size / BLOCK;
+                if (block == blockFirstIds.length) {
+                    blockFirstIds = Arrays.copyOf(blockFirstIds, block * 2);
+                    blockOffsets = Arrays.copyOf(blockOffsets, block * 2);
+                }
+                blockFirstIds[block] = id;
+                blockOffsets[block] = length;
+            } else {
+                long delta = id - last;
+                if (length + 10 > data.length) {
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+                }
+                while (delta >= 0x80) {
+                    data[length++] = (byte) (delta | 0x80);
+                    delta >>>= 7;
+                }
+                data[length++] = (byte) delta;
+            }
+            last = id;
+            size++;
+        }
+
+        private int blocks() {
+            return (size + BLOCK - 1) / BLOCK;
+        }
+
+        // Drops whole blocks of ids below firstId; false once nothing is left.
+        boolean dropBefore(long firstId) {
+            if (last < firstId) return false;
+            int blocks = blocks();
+            int drop = 0;
+            while (drop + 1 < blocks && blockFirstIds[drop + 1] <= firstId) {
+                drop++;
+            }
+            if (drop > 0) {
+                int offset = blockOffsets[drop];
+                data = Arrays.copyOfRange(data, offset, Math.max(offset + 8, length));
+                length -= offset;
+                blockFirstIds = Arrays.copyOfRange(blockFirstIds, drop, blocks);
+                blockOffsets = Arrays.copyOfRange(blockOffsets, drop, blocks);
+                for (int i = 0; i < blockOffsets.length; i++) {
+                    blockOffsets[i] -= offset;
+                }
+                size -= drop * BLOCK;
+            }
+            return true;
+        }
+
+        // A copy for save() to write without the lock. It can share the arrays: add() only
+        // writes past the ids already there and dropBefore() replaces the arrays rather than
+        // changing them, so the part the copy covers never changes under it.
+        PostingList snapshot() {
+            PostingList copy = new PostingList();
+            copy.data = data;
+            copy.length = length;
+            copy.blockFirstIds = blockFirstIds;
+            copy.blockOffsets = blockOffsets;
+            copy.size = size;
+            copy.last = last;
+            return copy;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            int blocks = blocks();
+            out.writeInt(size);
+            out.writeLong(last);
+            for (int i = 0; i < blocks; i++) {
+                out.writeLong(blockFirstIds[i]);
+                out.writeInt(blockOffsets[i]);
+            }
+            out.writeInt(length);
+            out.write(data, 0, length);
+        }
+
+        static PostingList readFrom(DataInputStream in) throws IOException {
+            PostingList list = new PostingList();
+            list.size = in.readInt();
+            list.last = in.readLong();
+            int blocks = list.blocks();
+            list.blockFirstIds = new long[Math.max(1, blocks)];
+            list.blockOffsets = new int[Math.max(1, blocks)];
+            for (int i = 0; i < blocks; i++) {
+                list.blockFirstIds[i] = in.readLong();
+                list.blockOffsets[i] = in.readInt();
+            }
+            list.length = in.readInt();
+            list.data = new byte[Math.max(8, list.length)];
+            in.readFully(list.data, 0, list.length);
+            return list;
+        }
+
+        Cursor cursor() {
+            return new Cursor(this);
+        }
+
+        /** Walks a list from the newest id down; only valid while the index is read-locked. */
+        static final class Cursor {
+            private final PostingList list;
+            private final int blocks;
+            private final long[] decoded = new long[BLOCK];
+            private int block = -1;
+            private int count;
+
+            Cursor(PostingList list) {
+                this.list = list;
+                this.blocks = list.blocks();
+            }
+
+            int size() {
+                return list.size;
+            }
+
+            /** The largest id at or below target, or -1. Targets may only go down. */
+            long floor(long target) {
+                if (block < 0 || target < decoded[0]) {
+                    int low = 0;
+                    int high = (block < 0 ? blocks : block) - 1;
+                    int found = -1;
+                    while (low <= high) {
+                        int mid = (low + high) >>> 1;
+                        if (list.blockFirstIds[mid] <= target) {
+                            found = mid;
+                            low = mid + 1;
+                        } else {
+                            high = mid - 1;
+                        }
+                    }
+                    if (found < 0) return -1;
+                    decode(found);
+                }
+                int low = 0;
+                int high = count - 1;
+                while (low < high) {
+                    int mid = (low + high + 1) >>> 1;
+                    if (decoded[mid] <= target) {
+                        low = mid;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                return decoded[low];
+            }
+
+            private void decode(int index) {
+                block = index;
+                count = Math.min(BLOCK, list.size - index * BLOCK);
+                byte[] data = list.data;
+                int position = list.blockOffsets[index];
+                long id = list.blockFirstIds[index];
+                decoded[0] = id;
+                for (int i = 1; i < count; i++) {
+                    long delta = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = data[position++];
+                        delta |= (long) (b & 0x7f) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    id += delta;
+                    decoded[i] = id;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms for the whole server. Recording is a LongAdder add or a single
+ * histogram increment, never a lock, so the broadcast and I/O paths can call it freely.
+ * Anything that costs more, like walking every client's queue or working out rates, happens
+ * only when someone reads: JMX, "/stats", or the once-a-second ticker.
+ *
+ * The ticker also appends a snapshot line to -Dchat.metrics.file (default chat-metrics.log)
+ * every -Dchat.metrics.snapshot.seconds (default 60, 0 turns it off).
+ */
+final class ServerMetrics implements ServerMetricsMBean {
+    private static final File SNAPSHOT_FILE = new File(System.getProperty("chat.metrics.file", "chat-metrics.log"));
+    private static final int SNAPSHOT_SECONDS = Integer.getInteger("chat.metrics.snapshot.seconds", 60);
+
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    // Lines and frames refused by flood control.
+    final LongAdder throttled = new LongAdder();
+    // Connections closed by the heartbeat, idle or write timeouts.
+    final LongAdder reaped = new LongAdder();
+    // Nanoseconds from a reaped connection's last sign of life to closing it.
+    final LatencyHistogram deadPeerNanos = new LatencyHistogram();
+    // Nanoseconds to hand one broadcast to every member's queue.
+    final LatencyHistogram broadcastNanos = new LatencyHistogram();
+    // Nanoseconds from accepting a connection to the user being in a room.
+    final LatencyHistogram handshakeNanos = new LatencyHistogram();
+    // Nanoseconds to answer a "/search", index lookup plus reading the matches from the log.
+    final LatencyHistogram searchNanos = new LatencyHistogram();
+
+    private final Collection<ClientHandler> clients;
+    private final TimerWheel timers;
+    private final AuditLog audit;
+    private volatile long messagesInPerSecond;
+    private volatile long messagesOutPerSecond;
+    private long lastMessagesIn;
+    private long lastMessagesOut;
+    private int ticks;
+
+    ServerMetrics(Collection<ClientHandler> clients, TimerWheel timers, AuditLog audit) {
+        this.clients = clients;
+        this.timers = timers;
+        this.audit = audit;
+    }
+
+    /** Registers the MBean and starts the ticker; only the running server does this. */
+    void start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chat:type=ServerMetrics"));
+        } catch (JMException e) {
+            System.err.println("Could not register metrics with JMX: " + e.getMessage());
+        }
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private void tick() {
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        messagesInPerSecond = in - lastMessagesIn;
+        messagesOutPerSecond = out - lastMessagesOut;
+        lastMessagesIn = in;
+        lastMessagesOut = out;
+        if (SNAPSHOT_SECONDS > 0 && ++ticks % SNAPSHOT_SECONDS == 0) {
+            try (Writer writer = new FileWriter(SNAPSHOT_FILE, true)) {
+                writer.write(new Date() + " " + getSummary().replace('\n', ' ') + System.lineSeparator());
+            } catch (IOException e) {
+                System.err.println("Could not write metrics to " + SNAPSHOT_FILE + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public int getConnectedClients() {
+        return clients.size();
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    public long getMessagesInPerSecond() {
+        return messagesInPerSecond;
+    }
+
+    public long getMessagesOutPerSecond() {
+        return messagesOutPerSecond;
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getBroadcastP50Micros() {
+        return broadcastNanos.percentile(0.50) / 1000;
+    }
+
+    public long getBroadcastP99Micros() {
+        return broadcastNanos.percentile(0.99) / 1000;
+    }
+
+    public long getBroadcastP999Micros() {
+        return broadcastNanos.percentile(0.999) / 1000;
+    }
+
+    public long getBroadcastMaxMicros() {
+        return broadcastNanos.max() / 1000;
+    }
+
+    public long getHandshakeP50Micros() {
+        return handshakeNanos.percentile(0.50) / 1000;
+    }
+
+    public long getHandshakeP99Micros() {
+        return handshakeNanos.percentile(0.99) / 1000;
+    }
+
+    public long getHandshakeMaxMicros() {
+        return handshakeNanos.max() / 1000;
+    }
+
+    public long getThrottledMessages() {
+        return throttled.sum();
+    }
+
+    public long getReapedConnections() {
+        return reaped.sum();
+    }
+
+    public long getDeadPeerDetectionP50Millis() {
+        return deadPeerNanos.percentile(0.50) / 1_000_000;
+    }
+
+    public long getDeadPeerDetectionMaxMillis() {
+        return deadPeerNanos.max() / 1_000_000;
+    }
+
+    public long getSearchP50Micros() {
+        return searchNanos.percentile(0.50) / 1000;
+    }
+
+    public long getSearchP99Micros() {
+        return searchNanos.percentile(0.99) / 1000;
+    }
+
+    public long getSearchMaxMicros() {
+        return searchNanos.max() / 1000;
+    }
+
+    public int getPendingTimers() {
+        return timers.pending();
+    }
+
+    public long getTimerTickP99Micros() {
+        return timers.tickDurations.percentile(0.99) / 1000;
+    }
+
+    public long getTimerTickMaxMicros() {
+        return timers.tickDurations.max() / 1000;
+    }
+
+    public long getOutboundBacklog() {
+        long total = 0;
+        for (ClientHandler client : clients) {
+            total += client.outbound().size();
+        }
+        return total;
+    }
+
+    public long getMaxOutboundBacklog() {
+        long max = 0;
+        for (ClientHandler client : clients) {
+            max = Math.max(max, client.outbound().size());
+        }
+        return max;
+    }
+
+    /** Audit entries queued but not yet written to disk. */
+    public long getAuditBacklog() {
+        return audit.backlog();
+    }
+
+    /** Audit entries lost because the writer fell a full buffer behind. */
+    public long getAuditDropped() {
+        return audit.dropped();
+    }
+
+    /** Dropped or skipped by the slow-consumer policy, for clients still connected. */
+    public long getDroppedMessages() {
+        long total = 0;
+        for (ClientHandler client : clients) {
+            total += client.outbound().dropped();
+        }
+        return total;
+    }
+
+    public String getSummary() {
+        return "clients=" + getConnectedClients()
+                + "\nmessages in=" + getMessagesIn() + " (" + getMessagesInPerSecond() + "/s)"
+                + " out=" + getMessagesOut() + " (" + getMessagesOutPerSecond() + "/s)"
+                + "\nbytes in=" + getBytesIn() + " out=" + getBytesOut()
+                + "\nbroadcast us p50=" + getBroadcastP50Micros() + " p99=" + getBroadcastP99Micros()
+                + " p999=" + getBroadcastP999Micros() + " max=" + getBroadcastMaxMicros()
+                + "\nhandshake us p50=" + getHandshakeP50Micros() + " p99=" + getHandshakeP99Micros()
+                + " max=" + getHandshakeMaxMicros()
+                + "\noutbound backlog=" + getOutboundBacklog() + " max=" + getMaxOutboundBacklog()
+                + " dropped=" + getDroppedMessages()
+                + "\nthrottled=" + getThrottledMessages()
+                + "\nreaped=" + getReapedConnections() + " detected after ms p50=" + getDeadPeerDetectionP50Millis()
+                + " max=" + getDeadPeerDetectionMaxMillis()
+                + "\nsearch us p50=" + getSearchP50Micros() + " p99=" + getSearchP99Micros()
+                + " max=" + getSearchMaxMicros()
+                + "\naudit backlog=" + getAuditBacklog() + " dropped=" + getAuditDropped()
+                + "\ntimers pending=" + getPendingTimers() + " tick us p99=" + getTimerTickP99Micros()
+                + " max=" + getTimerTickMaxMicros();
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * What ServerMetrics exposes over JMX, under "chat:type=ServerMetrics". Latencies are in
+ * microseconds, rates are over the last second.
+ */
+public interface ServerMetricsMBean {
+    int getConnectedClients();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getMessagesInPerSecond();
+
+    long getMessagesOutPerSecond();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getBroadcastP50Micros();
+
+    long getBroadcastP99Micros();
+
+    long getBroadcastP999Micros();
+
+    long getBroadcastMaxMicros();
+
+    long getHandshakeP50Micros();
+
+    long getHandshakeP99Micros();
+
+    long getHandshakeMaxMicros();
+
+    long getThrottledMessages();
+
+    long getReapedConnections();
+
+    long getDeadPeerDetectionP50Millis();
+
+    long getDeadPeerDetectionMaxMillis();
+
+    long getSearchP50Micros();
+
+    long getSearchP99Micros();
+
+    long getSearchMaxMicros();
+
+    int getPendingTimers();
+
+    long getTimerTickP99Micros();
+
+    long getTimerTickMaxMicros();
+
+    long getAuditBacklog();
+
+    long getAuditDropped();
+
+    long getOutboundBacklog();
+
+    long getMaxOutboundBacklog();
+
+    long getDroppedMessages();
+
+    String getSummary();
+}
@@ -0,0 +1,167 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel for the coarse per-connection timeouts (heartbeats, idle and write
+ * timeouts). A timeout goes into the bucket for the tick it falls due on, with a round
+ * count for deadlines more than one turn of the wheel away; one thread advances a tick at
+ * a time and only looks at that tick's bucket. Scheduling is a queue offer and cancelling
+ * sets a flag, so the cost per connection stays constant however many there are, in
+ * exchange for firing up to one tick late.
+ *
+ * Tasks run on the wheel's thread one after another and must not block. The thread starts
+ * with the first timeout.
+ */
+final class TimerWheel {
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final String threadName;
+    // Scheduled by any thread, moved into buckets by the wheel's thread at the next tick.
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile long startTime;
+    // Nanoseconds each tick spent placing new timeouts and expiring its bucket.
+    final LatencyHistogram tickDurations = new LatencyHistogram();
+
+    /** A scheduled task; cancelling is cheap and the entry is dropped when its bucket comes round. */
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private Timeout next;
+        private Timeout previous;
+        private volatile boolean cancelled;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    // Doubly linked so an entry can leave from the middle while the bucket is walked.
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.previous = tail;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.previous == null) {
+                head = next;
+            } else {
+                timeout.previous.next = next;
+            }
+            if (next == null) {
+                tail = timeout.previous;
+            } else {
+                next.previous = timeout.previous;
+            }
+            timeout.next = null;
+            timeout.previous = null;
+            return next;
+        }
+    }
+
+    /** wheelSize is rounded up to a power of two. */
+    TimerWheel(long tickMillis, int wheelSize, String threadName) {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickNanos = tickMillis * 1_000_000L;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.threadName = threadName;
+    }
+
+    Timeout schedule(Runnable task, long delayNanos) {
+        start();
+        Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(0, delayNanos));
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /** Timeouts scheduled and neither run nor dropped after cancelling yet. */
+    int pending() {
+        return pending.get();
+    }
+
+    private void start() {
+        if (started.get() || !started.compareAndSet(false, true)) return;
+        startTime = System.nanoTime();
+        Thread thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        long start = startTime;
+        for (long tick = 0; ; tick++) {
+            // Tick n covers [start + n * tickNanos, start + (n + 1) * tickNanos) and is
+            // processed at its end, so nothing in it fires early.
+            long tickEnd = start + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) - tickEnd < 0) {
+                LockSupport.parkNanos(tickEnd - now);
+            }
+            transferAdded(start, tick);
+            expire(wheel[(int) (tick & mask)], tickEnd);
+            tickDurations.record(System.nanoTime() - now);
+        }
+    }
+
+    private void transferAdded(long start, long tick) {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                pending.decrementAndGet();
+                continue;
+            }
+            long dueTick = (timeout.deadline - start) / tickNanos;
+            timeout.rounds = (dueTick - tick) / wheel.length;
+            // Already overdue: run it on this tick rather than a full turn from now.
+            wheel[(int) (Math.max(dueTick, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket, long tickEnd) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            if (timeout.cancelled) {
+                timeout = bucket.remove(timeout);
+                pending.decrementAndGet();
+            } else if (timeout.rounds > 0 || timeout.deadline - tickEnd > 0) {
+                timeout.rounds--;
+                timeout = timeout.next;
+            } else {
+                Timeout expired = timeout;
+                timeout = bucket.remove(timeout);
+                pending.decrementAndGet();
+                try {
+                    expired.task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Timer task failed: " + e);
+                }
+            }
+        }
+    }
+}
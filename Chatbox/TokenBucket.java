@@ -0,0 +1,45 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept as a single timestamp: the moment the bucket will be full again
+ * (the "theoretical arrival time" of GCRA). Taking tokens pushes that moment forward;
+ * a take that would push it more than one burst past now is refused. One CAS per take,
+ * no lock and no allocation, so a bucket can be shared by every connection.
+ */
+final class TokenBucket {
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE / 2);
+
+    /** A rate of zero or less means unlimited. */
+    TokenBucket(long tokensPerSecond, long burst) {
+        this.nanosPerToken = tokensPerSecond > 0 ? Math.max(1, 1_000_000_000L / tokensPerSecond) : 0;
+        this.burstNanos = nanosPerToken * Math.max(1, burst);
+    }
+
+    boolean tryTake(long tokens, long now) {
+        if (nanosPerToken == 0) return true;
+        long cost = tokens * nanosPerToken;
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            if (next - now > burstNanos) return false;
+            if (fullAt.compareAndSet(current, next)) return true;
+        }
+    }
+
+    /**
+     * Takes the tokens whether or not the bucket holds them yet, and returns how many
+     * nanoseconds the caller should wait before using them: zero while within the burst.
+     * For pacing a stream rather than refusing it.
+     */
+    long reserve(long tokens, long now) {
+        if (nanosPerToken == 0) return 0;
+        long cost = tokens * nanosPerToken;
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            if (fullAt.compareAndSet(current, next)) return Math.max(0, next - now - burstNanos);
+        }
+    }
+}